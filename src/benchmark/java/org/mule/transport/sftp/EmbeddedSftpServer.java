@@ -0,0 +1,174 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.kex.BuiltinDHFactories;
+import org.apache.sshd.server.ServerBuilder;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * An in-process sftp server for the benchmarks, serving a temporary directory to
+ * the user {@link #USER} with the password {@link #PASSWORD}. The legacy key
+ * exchanges are enabled since jsch 0.1.44 only supports the sha1 ones, and zlib
+ * compression is offered.
+ */
+public class EmbeddedSftpServer
+{
+    public static final String USER = "benchmark";
+    public static final String PASSWORD = "benchmark";
+
+    private final File rootDir;
+    private SshServer server;
+
+    public EmbeddedSftpServer() throws IOException
+    {
+        rootDir = File.createTempFile("sftp-benchmark-", "");
+        if (!rootDir.delete() || !rootDir.mkdir())
+        {
+            throw new IOException("Could not create the server root " + rootDir);
+        }
+    }
+
+    public void start() throws IOException
+    {
+        server = SshServer.setUpDefaultServer();
+        server.setHost("localhost");
+        server.setPort(0);
+
+        SimpleGeneratorHostKeyProvider hostKeyProvider = new SimpleGeneratorHostKeyProvider(
+            new File(rootDir, "hostkey.ser").toPath());
+        hostKeyProvider.setAlgorithm("RSA");
+        server.setKeyPairProvider(hostKeyProvider);
+        server.setKeyExchangeFactories(NamedFactory.setUpTransformedFactories(true, BuiltinDHFactories.VALUES,
+            ServerBuilder.DH2KEX));
+
+        // Offer compression, the clients only use it if they propose it
+        server.setCompressionFactoriesNames("zlib@openssh.com", "zlib", "none");
+
+        server.setPasswordAuthenticator(new PasswordAuthenticator()
+        {
+            public boolean authenticate(String username, String password, ServerSession session)
+            {
+                return USER.equals(username) && PASSWORD.equals(password);
+            }
+        });
+        server.setFileSystemFactory(new VirtualFileSystemFactory(rootDir.toPath()));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.start();
+    }
+
+    public void stop() throws IOException
+    {
+        try
+        {
+            if (server != null)
+            {
+                server.stop(true);
+            }
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(rootDir);
+        }
+    }
+
+    public int getPort()
+    {
+        return server.getPort();
+    }
+
+    /**
+     * @return an sftp endpoint address for the given directory of the server
+     */
+    public String getAddress(String path)
+    {
+        return "sftp://" + USER + ":" + PASSWORD + "@localhost:" + getPort() + path;
+    }
+
+    /**
+     * @param path the directory, relative to the server root
+     * @return the local directory, which is created if it does not exist
+     */
+    public File getDirectory(String path) throws IOException
+    {
+        File dir = new File(rootDir, path);
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Creates a file with random content
+     *
+     * @param path the file, relative to the server root
+     * @param size the size of the file
+     */
+    public void createFile(String path, long size) throws IOException
+    {
+        File file = new File(rootDir, path);
+        getDirectory(path.substring(0, Math.max(0, path.lastIndexOf('/'))));
+
+        byte[] buffer = new byte[64 * 1024];
+        new Random(size).nextBytes(buffer);
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            for (long written = 0; written < size; written += buffer.length)
+            {
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * @return a client that is logged in and has the given directory as working
+     *         directory
+     */
+    public SftpClient createClient(String path) throws IOException
+    {
+        return createClient(path, false);
+    }
+
+    /**
+     * @param compression true if the session should propose compression
+     * @return a client that is logged in and has the given directory as working
+     *         directory
+     */
+    public SftpClient createClient(String path, boolean compression) throws IOException
+    {
+        SftpClient client = new SftpClient("localhost");
+        client.setPort(getPort());
+        client.setCompression(compression);
+        client.login(USER, PASSWORD);
+        client.changeWorkingDirectory(path);
+        return client;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures retrieving and storing files of different sizes with
+ * <code>SftpClient</code> against an {@link EmbeddedSftpServer}, with and without
+ * the read and write pipelines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SftpClientBenchmark
+{
+    private static final String DIR = "/data";
+    private static final String FILE = "file.bin";
+
+    private static final int WINDOW_SIZE = 8;
+    private static final int REQUEST_SIZE = 256 * 1024;
+    private static final long MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    @Param({"1024", "1048576", "33554432"})
+    public int fileSize;
+
+    private EmbeddedSftpServer server;
+    private SftpClient client;
+    private byte[] content;
+    private byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        server = new EmbeddedSftpServer();
+        server.start();
+        server.createFile(DIR + "/" + FILE, fileSize);
+        client = server.createClient(DIR);
+
+        content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        client.disconnect();
+        server.stop();
+    }
+
+    @Benchmark
+    public long retrieveFile() throws IOException
+    {
+        return consume(client.retrieveFile(FILE));
+    }
+
+    @Benchmark
+    public long retrieveFilePipelined() throws IOException
+    {
+        return consume(client.retrieveFile(FILE, WINDOW_SIZE, REQUEST_SIZE, MAX_BUFFER_SIZE));
+    }
+
+    @Benchmark
+    public void storeFile() throws IOException
+    {
+        client.storeFile("upload.bin", new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public void storeFilePipelined() throws IOException
+    {
+        client.storeFile("upload.bin", new ByteArrayInputStream(content), WINDOW_SIZE, REQUEST_SIZE);
+    }
+
+    private long consume(InputStream in) throws IOException
+    {
+        long total = 0;
+        try
+        {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                total += n;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures storing and retrieving an 8 MB file with the <code>none</code>,
+ * <code>zlib</code> and <code>adaptive</code> compression against an
+ * {@link EmbeddedSftpServer}, for CSV content that compresses well and random
+ * content that does not compress at all. The server runs on loopback, so the
+ * results show the CPU cost of compression rather than what it saves on a slow
+ * link; the bytes on the wire shrink by the compression ratio of the content.
+ * With random content the adaptive mode should perform like <code>none</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SftpCompressionBenchmark
+{
+    private static final String DIR = "/data";
+    private static final String FILE = "feed.dat";
+    private static final int SIZE = 8 * 1024 * 1024;
+
+    @Param({"none", "zlib", "adaptive"})
+    public String compression;
+
+    @Param({"csv", "random"})
+    public String contentType;
+
+    private EmbeddedSftpServer server;
+    private SftpClient client;
+    private SftpCompressionAdvisor advisor;
+    private byte[] content;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        content = "csv".equals(contentType) ? createCsv() : createRandom();
+
+        server = new EmbeddedSftpServer();
+        server.start();
+        OutputStream out = new FileOutputStream(server.getDirectory(DIR).getPath() + "/" + FILE);
+        try
+        {
+            out.write(content);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        client = server.createClient(DIR, !"none".equals(compression));
+        if ("adaptive".equals(compression))
+        {
+            advisor = new SftpCompressionAdvisor();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        client.disconnect();
+        server.stop();
+    }
+
+    @Benchmark
+    public void storeFile() throws IOException
+    {
+        if (advisor != null)
+        {
+            advisor.sample(content, 0, content.length);
+            client.setCompression(advisor.isCompressionWorthwhile());
+        }
+        client.storeFile("upload.dat", new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public long retrieveFile() throws IOException
+    {
+        InputStream in = client.retrieveFile(FILE);
+        long total = 0;
+        try
+        {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                total += n;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return total;
+    }
+
+    private static byte[] createCsv()
+    {
+        StringBuilder csv = new StringBuilder(SIZE + 256);
+        Random random = new Random(42);
+        for (int row = 0; csv.length() < SIZE; row++)
+        {
+            csv.append(row).append(";customer-").append(random.nextInt(5000)).append(";2011-03-")
+                .append(10 + random.nextInt(20)).append(";").append(random.nextInt(100000) / 100.0)
+                .append(";EUR;ORDER_CONFIRMED\n");
+        }
+        byte[] bytes = new byte[SIZE];
+        System.arraycopy(csv.toString().getBytes(), 0, bytes, 0, SIZE);
+        return bytes;
+    }
+
+    private static byte[] createRandom()
+    {
+        byte[] bytes = new byte[SIZE];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead <code>SftpInputStream</code> adds to reading the stream it
+ * wraps. The wrapped stream is in memory, so only the wrapper is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SftpInputStreamBenchmark
+{
+    private static final int SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The number of bytes read per call, 1 for single byte reads
+     */
+    @Param({"1", "1024", "65536"})
+    public int readSize;
+
+    private byte[] content;
+    private byte[] buffer;
+    private ByteBuffer directBuffer;
+
+    @Setup
+    public void setUp()
+    {
+        content = new byte[SIZE];
+        buffer = new byte[readSize];
+        directBuffer = ByteBuffer.allocateDirect(readSize);
+    }
+
+    @Benchmark
+    public long readRaw() throws IOException
+    {
+        return consume(new ByteArrayInputStream(content));
+    }
+
+    @Benchmark
+    public long readSftpInputStream() throws Exception
+    {
+        // Not closed, closing would release the (missing) client
+        return consume(new SftpInputStream(null, new ByteArrayInputStream(content), "file.bin", false, null));
+    }
+
+    @Benchmark
+    public long readChannelDirect() throws Exception
+    {
+        ReadableByteChannel channel = new SftpInputStream(null, new ByteArrayInputStream(content), "file.bin",
+            false, null).getChannel();
+        long total = 0;
+        int n;
+        while ((n = channel.read(directBuffer)) != -1)
+        {
+            total += n;
+            directBuffer.clear();
+        }
+        return total;
+    }
+
+    private long consume(InputStream in) throws IOException
+    {
+        long total = 0;
+        if (readSize == 1)
+        {
+            while (in.read() != -1)
+            {
+                total++;
+            }
+        }
+        else
+        {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                total += n;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures listing a directory with <code>SftpClient</code> against an
+ * {@link EmbeddedSftpServer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SftpListingBenchmark
+{
+    private static final String DIR = "/list";
+
+    @Param({"10", "1000"})
+    public int fileCount;
+
+    private EmbeddedSftpServer server;
+    private SftpClient client;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        server = new EmbeddedSftpServer();
+        server.start();
+        for (int i = 0; i < fileCount; i++)
+        {
+            server.createFile(DIR + "/file" + i + ".txt", 100);
+        }
+        client = server.createClient(DIR);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        client.disconnect();
+        server.stop();
+    }
+
+    @Benchmark
+    public String[] listFiles() throws IOException
+    {
+        return client.listFiles();
+    }
+
+    @Benchmark
+    public SftpFileEntry[] listFileEntries() throws IOException
+    {
+        return client.listFileEntries();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp.transformers;
+
+import org.mule.transport.sftp.SftpInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures materializing streams of different sizes with
+ * <code>InputStreamToByteArray</code>, for streams of known size (read straight
+ * into the result), streams of unknown size (read in chunks) and, for comparison,
+ * the former ByteArrayOutputStream based copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class InputStreamToByteArrayBenchmark
+{
+    @Param({"1024", "1048576", "67108864"})
+    public int size;
+
+    private InputStreamToByteArray transformer;
+    private byte[] content;
+
+    @Setup
+    public void setUp()
+    {
+        transformer = new InputStreamToByteArray();
+        content = new byte[size];
+    }
+
+    @Benchmark
+    public Object transformKnownSize() throws Exception
+    {
+        SftpInputStream in = new SftpInputStream(null, new ByteArrayInputStream(content), "file.bin", false, null)
+        {
+            @Override
+            public void close()
+            {
+                // no client to release
+            }
+        };
+        in.setFileSize(size);
+        return transformer.doTransform(in, "UTF-8");
+    }
+
+    @Benchmark
+    public Object transformUnknownSize() throws Exception
+    {
+        return transformer.doTransform(new ByteArrayInputStream(content), "UTF-8");
+    }
+
+    @Benchmark
+    public byte[] byteArrayOutputStream() throws IOException
+    {
+        InputStream in = new ByteArrayInputStream(content);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = in.read(buffer)) > 0)
+        {
+            baos.write(buffer, 0, len);
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jcraft.jsch.Cipher;
+import com.jcraft.jsch.JSch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <code>SftpCipherProbe</code> orders the AES-CTR and AES-GCM ciphers of a cipher
+ * proposal by their throughput on this JVM, used by connectors with
+ * <code>cipherProbe="true"</code>.
+ * <p/>
+ * The server picks the first cipher of the client proposal that it supports, so the
+ * fastest of these ciphers, e.g. the key length with hardware support, should come
+ * first. They only trade places among themselves: ciphers of other modes keep their
+ * place in the proposal, so a faster but weaker cipher never moves ahead of a
+ * stronger one. Each AES-CTR or GCM cipher encrypts and decrypts a buffer through
+ * the jsch implementation that the sessions use, its throughput is the median of
+ * several samples. Ciphers that can't be used here, e.g. 256 bit AES without the
+ * unlimited strength policy, are dropped. The probe never adds ciphers to the
+ * proposal. The results are kept for the life of the JVM.
+ */
+public class SftpCipherProbe
+{
+    private static final Log logger = LogFactory.getLog(SftpCipherProbe.class);
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int WARMUP_ROUNDS = 8;
+    private static final int SAMPLES = 7;
+    private static final int ROUNDS_PER_SAMPLE = 8;
+
+    /**
+     * The ordered proposals, keyed by the proposal
+     */
+    private static final ConcurrentMap<String, String> orderedProposals = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The throughput in bytes per ms of the ciphers probed so far, -1 for ciphers
+     * that can't be used
+     */
+    private static final ConcurrentMap<String, Double> throughputs = new ConcurrentHashMap<String, Double>();
+
+    /**
+     * Whether the ciphers checked so far can be used
+     */
+    private static final ConcurrentMap<String, Boolean> usableCiphers = new ConcurrentHashMap<String, Boolean>();
+
+    private SftpCipherProbe()
+    {
+        // utility class
+    }
+
+    /**
+     * @param ciphers comma separated jsch cipher names, null for the default
+     *            proposal of jsch
+     * @return the usable ciphers of the proposal, the fastest AES-CTR or GCM cipher
+     *         first among those
+     */
+    public static String order(String ciphers)
+    {
+        if (ciphers == null)
+        {
+            ciphers = JSch.getConfig("cipher.c2s");
+        }
+
+        String ordered = orderedProposals.get(ciphers);
+        if (ordered == null)
+        {
+            ordered = probe(ciphers);
+            orderedProposals.putIfAbsent(ciphers, ordered);
+        }
+        return ordered;
+    }
+
+    /**
+     * @return the encrypt and decrypt throughput of the cipher in bytes per ms, -1
+     *         if it can't be used
+     */
+    public static double getThroughput(String cipher)
+    {
+        Double throughput = throughputs.get(cipher);
+        if (throughput == null)
+        {
+            throughput = measure(cipher);
+            throughputs.putIfAbsent(cipher, throughput);
+        }
+        return throughput;
+    }
+
+    /**
+     * @return true for the ciphers that are ordered by their throughput, AES in CTR
+     *         or GCM mode
+     */
+    static boolean isReordered(String cipher)
+    {
+        return cipher.startsWith("aes") && (cipher.endsWith("-ctr") || cipher.contains("-gcm"));
+    }
+
+    private static String probe(String ciphers)
+    {
+        List<String> usable = new ArrayList<String>();
+        List<String> reordered = new ArrayList<String>();
+        for (String cipher : ciphers.split(","))
+        {
+            cipher = cipher.trim();
+            if (cipher.length() > 0 && !usable.contains(cipher) && isUsable(cipher))
+            {
+                usable.add(cipher);
+                if (isReordered(cipher))
+                {
+                    reordered.add(cipher);
+                }
+            }
+        }
+
+        if (usable.isEmpty())
+        {
+            logger.warn("None of the ciphers " + ciphers + " could be probed, the proposal is not changed");
+            return ciphers;
+        }
+
+        // Ciphers that measure the same keep their configured order, the sort is
+        // stable
+        Collections.sort(reordered, new Comparator<String>()
+        {
+            public int compare(String cipher1, String cipher2)
+            {
+                return Double.compare(getThroughput(cipher2), getThroughput(cipher1));
+            }
+        });
+
+        // The reordered ciphers take the places they had among themselves
+        StringBuilder ordered = new StringBuilder();
+        Iterator<String> fastest = reordered.iterator();
+        for (String cipher : usable)
+        {
+            if (ordered.length() > 0)
+            {
+                ordered.append(',');
+            }
+            ordered.append(isReordered(cipher) ? fastest.next() : cipher);
+        }
+
+        if (logger.isInfoEnabled())
+        {
+            StringBuilder results = new StringBuilder();
+            for (String cipher : reordered)
+            {
+                results.append(' ').append(cipher).append('=').append(Math.round(getThroughput(cipher) / 1024 * 1000))
+                    .append("KB/s");
+            }
+            logger.info("Cipher proposal " + ordered + " ordered by throughput:" + results);
+        }
+        return ordered.toString();
+    }
+
+    /**
+     * @return true if the cipher can be used on this JVM
+     */
+    private static boolean isUsable(String name)
+    {
+        Boolean usable = usableCiphers.get(name);
+        if (usable == null)
+        {
+            try
+            {
+                Cipher encrypt = createCipher(name, Cipher.ENCRYPT_MODE);
+                usable = encrypt != null && createCipher(name, Cipher.DECRYPT_MODE) != null;
+                if (usable)
+                {
+                    byte[] buffer = new byte[encrypt.getBlockSize()];
+                    encrypt.update(buffer, 0, buffer.length, buffer, 0);
+                }
+            }
+            catch (Throwable e)
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("The cipher " + name + " can't be used: " + e);
+                }
+                usable = false;
+            }
+            usableCiphers.putIfAbsent(name, usable);
+        }
+        return usable;
+    }
+
+    private static double measure(String name)
+    {
+        try
+        {
+            Cipher encrypt = createCipher(name, Cipher.ENCRYPT_MODE);
+            Cipher decrypt = createCipher(name, Cipher.DECRYPT_MODE);
+            if (encrypt == null || decrypt == null)
+            {
+                return -1;
+            }
+
+            byte[] plain = new byte[BUFFER_SIZE];
+            byte[] encrypted = new byte[BUFFER_SIZE];
+            for (int i = 0; i < plain.length; i++)
+            {
+                plain[i] = (byte) i;
+            }
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++)
+            {
+                encrypt.update(plain, 0, plain.length, encrypted, 0);
+                decrypt.update(encrypted, 0, encrypted.length, plain, 0);
+            }
+
+            // The median is not thrown off by a sample that e.g. a GC pause slowed
+            // down
+            double[] samples = new double[SAMPLES];
+            for (int sample = 0; sample < SAMPLES; sample++)
+            {
+                long start = System.nanoTime();
+                for (int i = 0; i < ROUNDS_PER_SAMPLE; i++)
+                {
+                    encrypt.update(plain, 0, plain.length, encrypted, 0);
+                    decrypt.update(encrypted, 0, encrypted.length, plain, 0);
+                }
+                long nanos = Math.max(System.nanoTime() - start, 1);
+                samples[sample] = (double) BUFFER_SIZE * ROUNDS_PER_SAMPLE * 1000000 / nanos;
+            }
+            Arrays.sort(samples);
+            return samples[SAMPLES / 2];
+        }
+        catch (Throwable e)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("The cipher " + name + " can't be used: " + e);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @return the initialized jsch cipher, null for an unknown name
+     */
+    private static Cipher createCipher(String name, int mode) throws Exception
+    {
+        String className = JSch.getConfig(name);
+        if (className == null)
+        {
+            return null;
+        }
+        Object instance = Class.forName(className).newInstance();
+        if (!(instance instanceof Cipher))
+        {
+            return null;
+        }
+
+        // jsch uses getBlockSize() as the key length
+        Cipher cipher = (Cipher) instance;
+        byte[] key = new byte[cipher.getBlockSize()];
+        byte[] iv = new byte[cipher.getIVSize()];
+        for (int i = 0; i < key.length; i++)
+        {
+            key[i] = (byte) (i * 31);
+        }
+        cipher.init(mode, key, iv);
+        return cipher;
+    }
+}
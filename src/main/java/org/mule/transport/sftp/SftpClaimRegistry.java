@@ -0,0 +1,91 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.api.endpoint.EndpointURI;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <code>SftpClaimRegistry</code> keeps track of the remote files that have been
+ * picked up by a receiver and are not done yet. A file is claimed when a poll picks
+ * it up and stays claimed until the stream of the message is closed or routing the
+ * file fails, so a file that is still being consumed (and with autoDelete still
+ * exists on the server) is not picked up by the next poll again.
+ */
+public class SftpClaimRegistry
+{
+    private final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<String, Claim>();
+
+    /**
+     * Claims a file.
+     *
+     * @param uri the endpoint the file was found at
+     * @param path the path of the file, relative to the endpoint directory
+     * @return the claim, or null if the file is already claimed
+     */
+    public Claim claim(EndpointURI uri, String path)
+    {
+        Claim claim = new Claim(getKey(uri, path));
+        return claims.putIfAbsent(claim.key, claim) == null ? claim : null;
+    }
+
+    public boolean isClaimed(EndpointURI uri, String path)
+    {
+        return claims.containsKey(getKey(uri, path));
+    }
+
+    /**
+     * @return the number of files currently claimed
+     */
+    public int size()
+    {
+        return claims.size();
+    }
+
+    private static String getKey(EndpointURI uri, String path)
+    {
+        return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort() + uri.getPath() + "/" + path;
+    }
+
+    /**
+     * The claim of a single file
+     */
+    public class Claim
+    {
+        private final String key;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Claim(String key)
+        {
+            this.key = key;
+        }
+
+        /**
+         * Releases the file, so it can be picked up again. Only the first call has an
+         * effect.
+         */
+        public void release()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                claims.remove(key, this);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return key;
+        }
+    }
+}
@@ -12,7 +12,7 @@ package org.mule.transport.sftp;
 
 import com.jcraft.jsch.*;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
-import org.apache.commons.lang.NotImplementedException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mule.api.endpoint.ImmutableEndpoint;
@@ -22,10 +22,14 @@ import static org.mule.transport.sftp.notification.SftpTransportNotification.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <code>SftpClient</code> Wrapper around jsch sftp library. Provides access to basic
@@ -40,6 +44,17 @@ public class SftpClient
 
     public static final String STRICT_HOST_KEY_CHECKING = "StrictHostKeyChecking";
 
+    private static final String COMPRESSION_S2C = "compression.s2c";
+    private static final String COMPRESSION_C2S = "compression.c2s";
+    private static final String COMPRESSION_LEVEL = "compression_level";
+    private static final String COMPRESSION_ZLIB = "zlib@openssh.com,zlib,none";
+    private static final String COMPRESSION_NONE = "none";
+    private static final String CIPHER_S2C = "cipher.s2c";
+    private static final String CIPHER_C2S = "cipher.c2s";
+    private static final String MAC_S2C = "mac.s2c";
+    private static final String MAC_C2S = "mac.c2s";
+    private static final String KEX = "kex";
+
     private ChannelSftp channelSftp;
 
     private JSch jsch;
@@ -51,12 +66,32 @@ public class SftpClient
 
     private int port = 22;
 
+    // Compression settings of new sessions, see setCompression()
+    private boolean compression = false;
+    private int compressionLevel = -1;
+
+    // Algorithm proposals of new sessions, null for the jsch defaults
+    private String ciphers;
+    private String macs;
+    private String kexAlgorithms;
+
+    // Keepalive of new sessions, see setServerAliveInterval()
+    private int serverAliveInterval = 0;
+    private int serverAliveCountMax = 3;
+
     private String home;
 
+    // Time of the last remote operation known to have succeeded, see isAlive()
+    private volatile long lastAliveTime = 0;
+
+    // ms isAlive() waits for the answer of the server, see setProbeTimeout()
+    private long probeTimeout = 0;
+
     // Keep track of the current working directory for improved logging.
     private String currentDirectory = "";
 
-    private static final Object lock = new Object();
+    // Set if the session is shared with other clients, see SftpSessionMultiplexer
+    private SftpSessionMultiplexer.SharedSession sharedSession;
 
     public SftpClient(String host)
     {
@@ -83,6 +118,7 @@ public class SftpClient
                 logger.debug("Attempting to cwd to: " + wd);
             }
             channelSftp.cd(wd);
+            lastAliveTime = System.currentTimeMillis();
         }
         catch (SftpException e)
         {
@@ -114,12 +150,10 @@ public class SftpClient
     {
         try
         {
-            Properties hash = new Properties();
-            hash.put(STRICT_HOST_KEY_CHECKING, "no");
-
             session = jsch.getSession(user, host);
-            session.setConfig(hash);
+            session.setConfig(createSessionConfig());
             session.setPort(port);
+            configureKeepAlive();
             session.setPassword(password);
             session.connect();
 
@@ -128,6 +162,7 @@ public class SftpClient
 
             channelSftp = (ChannelSftp) channel;
             setHome(channelSftp.pwd());
+            lastAliveTime = System.currentTimeMillis();
         }
         catch (JSchException e)
         {
@@ -158,12 +193,10 @@ public class SftpClient
                 jsch.addIdentity(new File(identityFile).getAbsolutePath(), passphrase);
             }
 
-            Properties hash = new Properties();
-            hash.put(STRICT_HOST_KEY_CHECKING, "no");
-
             session = jsch.getSession(user, host);
-            session.setConfig(hash);
+            session.setConfig(createSessionConfig());
             session.setPort(port);
+            configureKeepAlive();
             session.connect();
 
             Channel channel = session.openChannel(CHANNEL_SFTP);
@@ -171,6 +204,7 @@ public class SftpClient
 
             channelSftp = (ChannelSftp) channel;
             setHome(channelSftp.pwd());
+            lastAliveTime = System.currentTimeMillis();
         }
         catch (JSchException e)
         {
@@ -182,6 +216,43 @@ public class SftpClient
         }
     }
 
+    private void configureKeepAlive() throws JSchException
+    {
+        if (serverAliveInterval > 0)
+        {
+            session.setServerAliveInterval(serverAliveInterval);
+            session.setServerAliveCountMax(serverAliveCountMax);
+        }
+    }
+
+    private Properties createSessionConfig()
+    {
+        Properties hash = new Properties();
+        hash.put(STRICT_HOST_KEY_CHECKING, "no");
+        String compressionMethods = compression ? COMPRESSION_ZLIB : COMPRESSION_NONE;
+        hash.put(COMPRESSION_S2C, compressionMethods);
+        hash.put(COMPRESSION_C2S, compressionMethods);
+        if (compressionLevel > 0)
+        {
+            hash.put(COMPRESSION_LEVEL, String.valueOf(compressionLevel));
+        }
+        if (ciphers != null)
+        {
+            hash.put(CIPHER_S2C, ciphers);
+            hash.put(CIPHER_C2S, ciphers);
+        }
+        if (macs != null)
+        {
+            hash.put(MAC_S2C, macs);
+            hash.put(MAC_C2S, macs);
+        }
+        if (kexAlgorithms != null)
+        {
+            hash.put(KEX, kexAlgorithms);
+        }
+        return hash;
+    }
+
     private void logAndThrowLoginError(String user, Exception e) throws IOException
     {
         logger.error("Error during login to " + user + "@" + host, e);
@@ -193,6 +264,138 @@ public class SftpClient
         this.port = port;
     }
 
+    /**
+     * Turns zlib compression of the ssh session on or off. Before login this sets
+     * what the session proposes, the server may still not support compression.
+     * Once logged in, a change is applied with a new key exchange, which also
+     * affects the other clients that share the session.
+     *
+     * @throws IOException If the new key exchange could not be started
+     */
+    public void setCompression(boolean compression) throws IOException
+    {
+        if (session == null)
+        {
+            this.compression = compression;
+            return;
+        }
+        if (compression == isCompression())
+        {
+            return;
+        }
+
+        String compressionMethods = compression ? COMPRESSION_ZLIB : COMPRESSION_NONE;
+        session.setConfig(COMPRESSION_S2C, compressionMethods);
+        session.setConfig(COMPRESSION_C2S, compressionMethods);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Turning compression " + (compression ? "on" : "off") + " for " + host);
+        }
+        try
+        {
+            session.rekey();
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Could not change the compression of the session to " + host + ": "
+                                  + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the session proposes compression
+     */
+    public boolean isCompression()
+    {
+        if (session == null)
+        {
+            return compression;
+        }
+        return !COMPRESSION_NONE.equals(session.getConfig(COMPRESSION_C2S));
+    }
+
+    /**
+     * @param compressionLevel the zlib level from 1 (fastest) to 9 (smallest), only
+     *            used by sessions created after this call
+     */
+    public void setCompressionLevel(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param ciphers the comma separated ciphers that new sessions propose for both
+     *            directions, the preferred one first
+     */
+    public void setCiphers(String ciphers)
+    {
+        this.ciphers = ciphers;
+    }
+
+    public String getCiphers()
+    {
+        return ciphers;
+    }
+
+    /**
+     * @param macs the comma separated MAC algorithms that new sessions propose for
+     *            both directions, the preferred one first
+     */
+    public void setMacs(String macs)
+    {
+        this.macs = macs;
+    }
+
+    public String getMacs()
+    {
+        return macs;
+    }
+
+    /**
+     * @param kexAlgorithms the comma separated key exchange algorithms that new
+     *            sessions propose, the preferred one first
+     */
+    public void setKexAlgorithms(String kexAlgorithms)
+    {
+        this.kexAlgorithms = kexAlgorithms;
+    }
+
+    public String getKexAlgorithms()
+    {
+        return kexAlgorithms;
+    }
+
+    /**
+     * Makes new sessions send an ssh keepalive message after this many ms without
+     * traffic, which keeps firewalls from dropping idle connections and disconnects
+     * the session when the server stops answering
+     *
+     * @param serverAliveInterval ms, 0 for no keepalive
+     */
+    public void setServerAliveInterval(int serverAliveInterval)
+    {
+        this.serverAliveInterval = serverAliveInterval;
+    }
+
+    public int getServerAliveInterval()
+    {
+        return serverAliveInterval;
+    }
+
+    /**
+     * @param serverAliveCountMax the number of unanswered keepalive messages after
+     *            which the session is disconnected
+     */
+    public void setServerAliveCountMax(int serverAliveCountMax)
+    {
+        this.serverAliveCountMax = serverAliveCountMax;
+    }
+
+    public int getServerAliveCountMax()
+    {
+        return serverAliveCountMax;
+    }
+
     public void rename(String filename, String dest) throws IOException
     {
         // Notify sftp rename file action
@@ -221,6 +424,40 @@ public class SftpClient
         }
     }
 
+    /**
+     * Renames a file, replacing the destination if it exists.
+     * <p/>
+     * A plain rename never replaces an existing file. Servers with the
+     * posix-rename@openssh.com extension can replace it atomically, but jsch has no
+     * way to send extended requests. So when the rename fails because the
+     * destination exists, the destination is removed and the rename is done again.
+     * The destination is missing only between those two requests.
+     * 
+     * @param filename the file to rename
+     * @param dest the new name, replaced if it exists
+     * @throws IOException If an error occurs
+     */
+    public void replace(String filename, String dest) throws IOException
+    {
+        try
+        {
+            rename(filename, dest);
+        }
+        catch (IOException e)
+        {
+            if (!exists(dest))
+            {
+                throw e;
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Replacing the existing file " + dest);
+            }
+            deleteFile(getAbsolutePath(dest));
+            rename(filename, dest);
+        }
+    }
+
     public void deleteFile(String fileName) throws IOException
     {
         // Notify sftp delete file action
@@ -249,7 +486,14 @@ public class SftpClient
         {
             channelSftp.disconnect();
         }
-        if ((session != null) && session.isConnected())
+        if (sharedSession != null)
+        {
+            // Other clients may still use the session
+            SftpSessionMultiplexer.SharedSession shared = sharedSession;
+            sharedSession = null;
+            shared.release();
+        }
+        else if ((session != null) && session.isConnected())
         {
             session.disconnect();
         }
@@ -261,6 +505,107 @@ public class SftpClient
                && (session != null) && session.isConnected();
     }
 
+    /**
+     * Checks that the server still answers, unlike isConnected() which only knows
+     * if the connection has been closed. A cheap realpath request is sent unless a
+     * remote operation succeeded less than maxAge ms ago. The answer is awaited for
+     * at most the probe timeout; a client that does not answer in time must not be
+     * used anymore, since the answer may still come in later.
+     *
+     * @param maxAge ms for which a successful remote operation is trusted
+     * @return true if the server answered
+     */
+    public boolean isAlive(long maxAge)
+    {
+        if (!isConnected())
+        {
+            return false;
+        }
+        if (System.currentTimeMillis() - lastAliveTime < maxAge)
+        {
+            return true;
+        }
+
+        final ChannelSftp channel = getChannelSftp();
+        try
+        {
+            if (probeTimeout > 0)
+            {
+                // A connection that died silently would block the request until
+                // the TCP connection times out
+                Future<String> probe = SftpThreads.getTransferExecutor().submit(new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        return channel.realpath(".");
+                    }
+                });
+                try
+                {
+                    probe.get(probeTimeout, TimeUnit.MILLISECONDS);
+                }
+                finally
+                {
+                    probe.cancel(true);
+                }
+            }
+            else
+            {
+                channel.realpath(".");
+            }
+            lastAliveTime = System.currentTimeMillis();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (Exception e)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("The connection to " + host + " did not answer: " + e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param probeTimeout ms isAlive() waits for the answer of the server, 0 to
+     *            wait as long as the connection lasts
+     */
+    public void setProbeTimeout(long probeTimeout)
+    {
+        this.probeTimeout = probeTimeout;
+    }
+
+    boolean isSessionConnected()
+    {
+        return (session != null) && session.isConnected();
+    }
+
+    /**
+     * Creates a client with its own sftp channel on the session of this client.
+     * Disconnecting the new client closes the channel and releases its share of
+     * the session.
+     * 
+     * @param sharedSession the shared session to release on disconnect
+     * @return a connected client
+     * @throws IOException If the channel could not be opened
+     */
+    SftpClient createChannelClient(SftpSessionMultiplexer.SharedSession sharedSession) throws IOException
+    {
+        SftpClient client = new SftpClient(host, notifier);
+        client.port = port;
+        client.session = session;
+        client.home = home;
+        client.probeTimeout = probeTimeout;
+        client.channelSftp = openSftpChannel();
+        client.sharedSession = sharedSession;
+        return client;
+    }
+
     public String[] listFiles() throws IOException
     {
         return listFiles(".");
@@ -281,35 +626,78 @@ public class SftpClient
         return listDirectory(path, false, true);
     }
 
+    /**
+     * Lists the files in the current working directory together with their
+     * attributes, using a single <code>ls</code> round trip.
+     * 
+     * @return the files (not directories) in the current working directory
+     * @throws IOException If an error occurs
+     */
+    public SftpFileEntry[] listFileEntries() throws IOException
+    {
+        return listFileEntries(".");
+    }
+
+    public SftpFileEntry[] listFileEntries(String path) throws IOException
+    {
+        List<SftpFileEntry> entries = listEntries(path, true, false);
+        return entries == null ? null : entries.toArray(new SftpFileEntry[entries.size()]);
+    }
+
+    /**
+     * Lists the files and the directories in a directory, without "." and "..".
+     */
+    public SftpFileEntry[] listFileAndDirectoryEntries(String path) throws IOException
+    {
+        List<SftpFileEntry> entries = listEntries(path, true, true);
+        return entries == null ? null : entries.toArray(new SftpFileEntry[entries.size()]);
+    }
+
     private String[] listDirectory(String path, boolean includeFiles, boolean includeDirectories)
         throws IOException
+    {
+        List<SftpFileEntry> entries = listEntries(path, includeFiles, includeDirectories);
+        if (entries == null)
+        {
+            return null;
+        }
+        String[] ret = new String[entries.size()];
+        for (int i = 0; i < ret.length; i++)
+        {
+            ret[i] = entries.get(i).getName();
+        }
+        return ret;
+    }
+
+    private List<SftpFileEntry> listEntries(String path, boolean includeFiles, boolean includeDirectories)
+        throws IOException
     {
         try
         {
-            Vector vv = channelSftp.ls(path);
+            Vector<?> vv = channelSftp.ls(path);
             if (vv != null)
             {
-                List<String> ret = new ArrayList<String>();
+                List<SftpFileEntry> ret = new ArrayList<SftpFileEntry>(vv.size());
                 for (int i = 0; i < vv.size(); i++)
                 {
                     Object obj = vv.elementAt(i);
-                    if (obj instanceof com.jcraft.jsch.ChannelSftp.LsEntry)
+                    if (obj instanceof LsEntry)
                     {
                         LsEntry entry = (LsEntry) obj;
                         if (includeFiles && !entry.getAttrs().isDir())
                         {
-                            ret.add(entry.getFilename());
+                            ret.add(SftpFileEntry.fromLsEntry(entry));
                         }
                         if (includeDirectories && entry.getAttrs().isDir())
                         {
                             if (!entry.getFilename().equals(".") && !entry.getFilename().equals(".."))
                             {
-                                ret.add(entry.getFilename());
+                                ret.add(SftpFileEntry.fromLsEntry(entry));
                             }
                         }
                     }
                 }
-                return ret.toArray(new String[ret.size()]);
+                return ret;
             }
         }
         catch (SftpException e)
@@ -325,21 +713,99 @@ public class SftpClient
     // }
 
     public InputStream retrieveFile(String fileName) throws IOException
+    {
+        return retrieveFile(fileName, 1, 0, 0);
+    }
+
+    /**
+     * Retrieves a file, optionally with several read requests in flight at the same
+     * time.
+     * 
+     * @param fileName the file to retrieve
+     * @param windowSize the number of read requests to keep in flight, a value
+     *            less than 2 disables pipelining
+     * @param requestSize the number of bytes fetched per read request
+     * @param maxBufferSize the maximum number of bytes to read ahead
+     * @return a stream with the content of the file
+     * @throws IOException If an error occurs
+     * @see SftpPipelinedInputStream
+     */
+    public InputStream retrieveFile(String fileName, int windowSize, int requestSize, long maxBufferSize)
+        throws IOException
+    {
+        return retrieveFile(fileName, getSize(fileName), windowSize, requestSize, maxBufferSize);
+    }
+
+    /**
+     * Same as {@link #retrieveFile(String, int, int, long)}, for callers that
+     * already know the size of the file.
+     */
+    public InputStream retrieveFile(String fileName,
+                                    long size,
+                                    int windowSize,
+                                    int requestSize,
+                                    long maxBufferSize) throws IOException
     {
         // Notify sftp get file action
-        long size = getSize(fileName);
+        notifyRetrieve(fileName, size);
+
+        try
+        {
+            // Pipelining is pointless if the whole file fits in one request
+            if (windowSize > 1 && requestSize > 0 && size > requestSize)
+            {
+                String path = fileName.startsWith("/") ? fileName : channelSftp.pwd() + "/" + fileName;
+                try
+                {
+                    return new SftpPipelinedInputStream(this, path, size, windowSize, requestSize,
+                        maxBufferSize);
+                }
+                catch (IOException e)
+                {
+                    // No reader channel could be opened, e.g. because the server
+                    // limits the number of sessions
+                    logger.warn("Reading " + fileName + " without pipelining: " + e.getMessage());
+                }
+            }
+            return channelSftp.get(fileName);
+        }
+        catch (SftpException e)
+        {
+            throw new IOException(e.getMessage() + ".  Filename is " + fileName);
+        }
+    }
+
+    /**
+     * Sends the sftp get file notification for files that are not retrieved by
+     * {@link #retrieveFile(String)}.
+     */
+    void notifyRetrieve(String fileName, long size)
+    {
         if (notifier != null)
         {
             notifier.notify(SFTP_GET_ACTION, currentDirectory + "/" + fileName, size);
         }
+    }
 
+    /**
+     * Opens an additional sftp channel on the session of this client. The channel
+     * shares the authenticated connection, so opening it does not cost a new key
+     * exchange. The caller is responsible for disconnecting the channel.
+     * 
+     * @return a connected sftp channel
+     * @throws IOException If the channel could not be opened
+     */
+    ChannelSftp openSftpChannel() throws IOException
+    {
         try
         {
-            return channelSftp.get(fileName);
+            Channel channel = session.openChannel(CHANNEL_SFTP);
+            channel.connect();
+            return (ChannelSftp) channel;
         }
-        catch (SftpException e)
+        catch (JSchException e)
         {
-            throw new IOException(e.getMessage() + ".  Filename is " + fileName);
+            throw new IOException("Could not open an sftp channel to " + host + ": " + e.getMessage());
         }
     }
 
@@ -355,6 +821,24 @@ public class SftpClient
     // }
 
     public void storeFile(String fileName, InputStream stream) throws IOException
+    {
+        storeFile(fileName, stream, 1, 0);
+    }
+
+    /**
+     * Stores a file, optionally reading the stream and writing to the server in
+     * parallel.
+     * 
+     * @param fileName the name of the remote file
+     * @param stream the content of the file
+     * @param windowSize the number of buffers in flight between the stream and the
+     *            server, a value less than 2 disables pipelining
+     * @param requestSize the size of each buffer
+     * @throws IOException If an error occurs
+     * @see SftpPipelinedUpload
+     */
+    public void storeFile(String fileName, InputStream stream, int windowSize, int requestSize)
+        throws IOException
     {
         try
         {
@@ -370,7 +854,33 @@ public class SftpClient
                 logger.debug("Sending to SFTP service: Stream = " + stream + " , filename = " + fileName);
             }
 
-            channelSftp.put(stream, fileName);
+            if (windowSize > 1 && requestSize > 0)
+            {
+                OutputStream out = channelSftp.put(fileName, ChannelSftp.OVERWRITE);
+                boolean ok = false;
+                try
+                {
+                    new SftpPipelinedUpload(windowSize, requestSize).transfer(stream, out);
+                    ok = true;
+                }
+                finally
+                {
+                    // Closing waits for the outstanding acknowledgements, don't hide
+                    // the original error if that fails as well
+                    if (ok)
+                    {
+                        out.close();
+                    }
+                    else
+                    {
+                        IOUtils.closeQuietly(out);
+                    }
+                }
+            }
+            else
+            {
+                channelSftp.put(stream, fileName);
+            }
         }
         catch (SftpException e)
         {
@@ -485,9 +995,14 @@ public class SftpClient
 
     /**
      * Creates the directory if it not already exists. TODO: check if the SftpUtil &
-     * SftpClient methods can be merged Note, this method is synchronized because it
-     * in rare cases can be called from two threads at the same time and thus cause
-     * an error.
+     * SftpClient methods can be merged.
+     * <p/>
+     * Note, this method is synchronized per host and directory (see
+     * {@link SftpDirectoryLocks}) because it in rare cases can be called from two
+     * threads at the same time and thus cause an error.
+     * <p/>
+     * Directories that are known to exist are not checked again, see
+     * {@link SftpDirectoryCache}.
      * 
      * @param endpoint
      * @param newDir
@@ -497,6 +1012,12 @@ public class SftpClient
     {
         String newDirAbs = endpoint.getEndpointURI().getPath() + "/" + newDir;
 
+        SftpDirectoryCache directoryCache = ((SftpConnector) endpoint.getConnector()).getDirectoryCache();
+        if (directoryCache.contains(endpoint.getEndpointURI(), getAbsolutePath(newDirAbs)))
+        {
+            return;
+        }
+
         String currDir = currentDirectory;
 
         if (logger.isDebugEnabled())
@@ -506,7 +1027,7 @@ public class SftpClient
 
         // We need to have a synchronized block if two++ threads tries to
         // create the same directory at the same time
-        synchronized (lock)
+        synchronized (SftpDirectoryLocks.getLock(host, getAbsolutePath(newDirAbs)))
         {
             // Try to change directory to the new dir, if it fails - create it
             try
@@ -534,22 +1055,29 @@ public class SftpClient
                 }
             }
         }
+        directoryCache.add(endpoint.getEndpointURI(), getAbsolutePath(newDirAbs));
     }
 
     public String duplicateHandling(String destDir, String filename, String duplicateHandling)
         throws IOException
     {
-        if (duplicateHandling.equals(SftpConnector.PROPERTY_DUPLICATE_HANDLING_ASS_SEQ_NO))
-        {
-            filename = createUniqueName(destDir, filename);
+        return duplicateHandling(destDir, filename, duplicateHandling, null);
+    }
 
-        }
-        else if (duplicateHandling.equals(SftpConnector.PROPERTY_DUPLICATE_HANDLING_OVERWRITE))
+    /**
+     * @param uniqueNames the names picked by other dispatchers, or null. If given, a
+     *            name picked by <code>addSeqNo</code> is reserved in it and must be
+     *            released when the file has been written
+     * @see #duplicateHandling(String, String, String)
+     */
+    public String duplicateHandling(String destDir,
+                                    String filename,
+                                    String duplicateHandling,
+                                    SftpUniqueNames uniqueNames) throws IOException
+    {
+        if (duplicateHandling.equals(SftpConnector.PROPERTY_DUPLICATE_HANDLING_ASS_SEQ_NO))
         {
-            // TODO. ML FIX. Implement this!
-            throw new NotImplementedException("Strategy "
-                                              + SftpConnector.PROPERTY_DUPLICATE_HANDLING_OVERWRITE
-                                              + " is not yet implemented");
+            filename = createUniqueName(destDir, filename, uniqueNames);
 
         }
         else
@@ -557,15 +1085,19 @@ public class SftpClient
             // Nothing to do in the case of
             // PROPERTY_DUPLICATE_HANDLING_THROW_EXCEPTION, if the file already
             // exists then an error will be throwed...
+            // Nor for PROPERTY_DUPLICATE_HANDLING_OVERWRITE, the file is written
+            // over the existing one, or replaces it, see replace()
         }
 
         return filename;
     }
 
-    private String createUniqueName(String dir, String path) throws IOException
+    /**
+     * Finds a free name by checking the candidate names one at a time, so the cost
+     * depends on the number of duplicates and not on the size of the directory.
+     */
+    private String createUniqueName(String dir, String path, SftpUniqueNames uniqueNames) throws IOException
     {
-        int fileIdx = 1;
-
         String filename;
         String fileType;
         int fileTypeIdx = path.lastIndexOf('.');
@@ -588,15 +1120,22 @@ public class SftpClient
                          + fileType + ")");
         }
 
-        String uniqueFilename = filename;
-        String[] existingFiles = listFiles(getAbsolutePath(dir));
-
-        while (existsFile(existingFiles, uniqueFilename, fileType))
+        String absoluteDir = getAbsolutePath(dir);
+        String uniqueFilename = path;
+        if (!isFreeName(absoluteDir, path, uniqueNames))
         {
-            uniqueFilename = filename + '_' + fileIdx++;
+            int fileIdx = uniqueNames == null ? 1 : uniqueNames.getNextSeqNo(host, absoluteDir + "/" + path);
+            while (!isFreeName(absoluteDir, filename + '_' + fileIdx + fileType, uniqueNames))
+            {
+                fileIdx++;
+            }
+            uniqueFilename = filename + '_' + fileIdx + fileType;
+            if (uniqueNames != null)
+            {
+                uniqueNames.setSeqNo(host, absoluteDir + "/" + path, fileIdx);
+            }
         }
 
-        uniqueFilename = uniqueFilename + fileType;
         if (!path.equals(uniqueFilename) && logger.isInfoEnabled())
         {
             logger.info("A file with the original filename (" + dir + "/" + path
@@ -609,22 +1148,67 @@ public class SftpClient
         return uniqueFilename;
     }
 
-    private boolean existsFile(String[] files, String filename, String fileType)
+    /**
+     * @return true if the name is neither reserved by another dispatcher nor exists,
+     *         the name is then reserved
+     */
+    private boolean isFreeName(String absoluteDir, String name, SftpUniqueNames uniqueNames)
+        throws IOException
     {
-        boolean existsFile = false;
-        filename += fileType;
-        for (String file : files)
+        String path = absoluteDir + "/" + name;
+        if (uniqueNames != null && !uniqueNames.reserve(host, path))
         {
-            if (file.equals(filename))
+            return false;
+        }
+        boolean exists;
+        try
+        {
+            exists = exists(path);
+        }
+        catch (IOException e)
+        {
+            if (uniqueNames != null)
             {
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("Found existing file: " + file);
-                }
-                existsFile = true;
+                uniqueNames.release(host, path);
+            }
+            throw e;
+        }
+        if (exists)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Found existing file: " + path);
+            }
+            if (uniqueNames != null)
+            {
+                uniqueNames.release(host, path);
+            }
+        }
+        return !exists;
+    }
+
+    /**
+     * Checks if a file or directory exists with a single request
+     * 
+     * @param path the path to check
+     * @return true if the path exists
+     * @throws IOException If the server could not be asked
+     */
+    public boolean exists(String path) throws IOException
+    {
+        try
+        {
+            channelSftp.lstat(getAbsolutePath(path));
+            return true;
+        }
+        catch (SftpException e)
+        {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+            {
+                return false;
             }
+            throw new IOException("Could not check if '" + path + "' exists, caused by: " + e.getMessage());
         }
-        return existsFile;
     }
 
     public void chmod(String path, int permissions) throws SftpException
@@ -0,0 +1,121 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * <code>SftpCompressionAdvisor</code> decides if ssh compression pays off for the
+ * files of an endpoint that uses <code>compression="adaptive"</code>.
+ * <p/>
+ * The start of outgoing payloads is compressed at the fastest zlib level, and the
+ * resulting ratios are averaged. Compression is turned off when the average shows
+ * that the payloads hardly compress (e.g. zip files or images) and on again when
+ * they do, with a margin between the two so the sessions are not re-keyed back and
+ * forth. Incoming files can't be sampled before they are transferred, they are
+ * judged by their extension and the average.
+ */
+public class SftpCompressionAdvisor
+{
+    /**
+     * The number of bytes at the start of a payload that are sampled
+     */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Files smaller than this are transferred with the compression the session
+     * has, a key exchange to change it costs more than it saves
+     */
+    public static final long MIN_ADAPTIVE_SIZE = 256 * 1024;
+
+    /**
+     * Samples smaller than this say little about the payload
+     */
+    private static final int MIN_SAMPLE_SIZE = 512;
+
+    private static final double OFF_RATIO = 0.9;
+    private static final double ON_RATIO = 0.8;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList("gz", "tgz",
+        "zip", "jar", "bz2", "xz", "7z", "rar", "z", "lz", "lzma", "zst", "jpg", "jpeg", "png", "gif", "mp3", "mp4",
+        "mov", "avi", "gpg", "pgp"));
+
+    private double averageRatio = 0.5;
+    private boolean worthwhile = true;
+
+    /**
+     * Compresses a sample of a payload and takes its ratio into account
+     *
+     * @return the compressed size divided by the size of the sample
+     */
+    public double sample(byte[] buffer, int offset, int length)
+    {
+        length = Math.min(length, SAMPLE_SIZE);
+        if (length < MIN_SAMPLE_SIZE)
+        {
+            return averageRatio;
+        }
+
+        double ratio = measureRatio(buffer, offset, length);
+        synchronized (this)
+        {
+            averageRatio = (averageRatio + ratio) / 2;
+            worthwhile = averageRatio < (worthwhile ? OFF_RATIO : ON_RATIO);
+        }
+        return ratio;
+    }
+
+    /**
+     * @return true if the recent payloads compress well enough
+     */
+    public synchronized boolean isCompressionWorthwhile()
+    {
+        return worthwhile;
+    }
+
+    /**
+     * @return false for files that are compressed already, going by their
+     *         extension, otherwise what the recent payloads suggest
+     */
+    public boolean isCompressionWorthwhile(String fileName)
+    {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase()))
+        {
+            return false;
+        }
+        return isCompressionWorthwhile();
+    }
+
+    static double measureRatio(byte[] buffer, int offset, int length)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(buffer, offset, length);
+            deflater.finish();
+            byte[] out = new byte[8 * 1024];
+            long compressed = 0;
+            while (!deflater.finished())
+            {
+                compressed += deflater.deflate(out);
+            }
+            return (double) compressed / length;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+}
@@ -37,28 +37,25 @@ public class SftpConnectionFactory implements PoolableObjectFactory
 
     public static SftpClient createClient(ImmutableEndpoint endpoint) throws Exception
     {
-        EndpointURI endpointURI = endpoint.getEndpointURI();
-
-        String host = endpointURI.getHost();
-        if (logger.isDebugEnabled())
+        SftpConnector connector = (SftpConnector) endpoint.getConnector();
+        if (connector.isUseSessionSharing())
         {
-            logger.debug("Using host: " + host);
+            return connector.getSessionMultiplexer().createClient(endpoint,
+                connector.getMaxChannelsPerSession());
         }
+        return connect(endpoint);
+    }
 
-        SftpClient client = new SftpClient(host);
+    /**
+     * Creates a client with a session of its own
+     */
+    static SftpClient connect(ImmutableEndpoint endpoint) throws Exception
+    {
+        EndpointURI endpointURI = endpoint.getEndpointURI();
+        SftpClient client = newClient(endpoint);
 
         try
         {
-            int uriPort = endpointURI.getPort();
-            if (uriPort != -1)
-            {
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("Using port: " + uriPort);
-                }
-                client.setPort(uriPort);
-            }
-
             SftpUtil sftpUtil = new SftpUtil(endpoint);
             String identityFile = sftpUtil.getIdentityFile();
 
@@ -69,7 +66,8 @@ public class SftpConnectionFactory implements PoolableObjectFactory
              * we will get exceptions of type
              * "Session.connect: java.net.SocketException: Connection reset"...
              * Solutions: increase the MaxStartups on the server or fix a retry or
-             * use a exception-strategy(?)
+             * use a exception-strategy(?) or share sessions between clients, see
+             * maxChannelsPerSession
              */
 
             // boolean succeeded = false;
@@ -110,6 +108,51 @@ public class SftpConnectionFactory implements PoolableObjectFactory
         }
     }
 
+    /**
+     * @return a client configured for the endpoint, not connected yet
+     */
+    static SftpClient newClient(ImmutableEndpoint endpoint) throws IOException
+    {
+        EndpointURI endpointURI = endpoint.getEndpointURI();
+        String host = endpointURI.getHost();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Using host: " + host);
+        }
+
+        SftpClient client = new SftpClient(host);
+
+        int uriPort = endpointURI.getPort();
+        if (uriPort != -1)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Using port: " + uriPort);
+            }
+            client.setPort(uriPort);
+        }
+
+        SftpConnector connector = (SftpConnector) endpoint.getConnector();
+        SftpUtil sftpUtil = new SftpUtil(endpoint);
+
+        String compression = sftpUtil.getCompression();
+        if (!SftpConnector.PROPERTY_COMPRESSION_NONE.equals(compression))
+        {
+            // Adaptive sessions start the way the recent payloads suggest
+            client.setCompression(!sftpUtil.isAdaptiveCompression()
+                                  || connector.getCompressionAdvisor(endpoint).isCompressionWorthwhile());
+            client.setCompressionLevel(sftpUtil.getCompressionLevel());
+        }
+
+        client.setCiphers(sftpUtil.getCiphers());
+        client.setMacs(sftpUtil.getMacs());
+        client.setKexAlgorithms(sftpUtil.getKexAlgorithms());
+        client.setServerAliveInterval(connector.getServerAliveInterval());
+        client.setServerAliveCountMax(connector.getServerAliveCountMax());
+        client.setProbeTimeout(connector.getValidationTimeout());
+        return client;
+    }
+
     public void passivateObject(Object o) throws Exception
     {
         // Do nothing!
@@ -118,10 +161,14 @@ public class SftpConnectionFactory implements PoolableObjectFactory
     public boolean validateObject(Object o)
     {
         SftpClient client = (SftpClient) o;
+        SftpConnector connector = (SftpConnector) endpoint.getConnector();
+        boolean valid = connector.isProbeValidation()
+                        ? client.isAlive(connector.getValidationCacheTime())
+                        : client.isConnected();
         if (logger.isDebugEnabled())
         {
-            logger.debug("Inside validateObject - will return " + client.isConnected());
+            logger.debug("Inside validateObject - will return " + valid);
         }
-        return client.isConnected();
+        return valid;
     }
 }
@@ -10,8 +10,9 @@
 
 package org.mule.transport.sftp;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,6 +24,7 @@ import org.mule.api.construct.FlowConstruct;
 import org.mule.api.endpoint.EndpointURI;
 import org.mule.api.endpoint.ImmutableEndpoint;
 import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.api.endpoint.OutboundEndpoint;
 import org.mule.api.lifecycle.InitialisationException;
 import org.mule.api.transport.ConnectorException;
 import org.mule.api.transport.MessageReceiver;
@@ -54,6 +56,12 @@ public class SftpConnector extends AbstractConnector
     public static final String PROPERTY_SELECT_EXPRESSION = "selectExpression";
     public static final String PROPERTY_FILE_EXTENSION = "fileExtension";
     public static final String PROPERTY_INCLUDE_SUBFOLDERS = "includeSubfolders";
+    public static final String PROPERTY_MAX_SUBFOLDER_DEPTH = "maxSubfolderDepth";
+    public static final String PROPERTY_SUBFOLDER_PATTERN = "subfolderPattern";
+    public static final String PROPERTY_SUBFOLDER_PARALLELISM = "subfolderParallelism";
+    public static final String PROPERTY_RELATIVE_PATH = "relativePath";
+    public static final String PROPERTY_DELTA_POLLING = "deltaPolling";
+    public static final String PROPERTY_SNAPSHOT_DIR = "snapshotDir";
     public static final String PROPERTY_IDENTITY_FILE = "identityFile";
     public static final String PROPERTY_PASS_PHRASE = "passphrase";
     public static final String PROPERTY_FILE_AGE = "fileAge";
@@ -62,13 +70,41 @@ public class SftpConnector extends AbstractConnector
     public static final String PROPERTY_ARCHIVE_DIR = "archiveDir";
     public static final String PROPERTY_ARCHIVE_TEMP_RECEIVING_DIR = "archiveTempReceivingDir";
     public static final String PROPERTY_ARCHIVE_TEMP_SENDING_DIR = "archiveTempSendingDir";
+    public static final String PROPERTY_STREAMING_ARCHIVE = "streamingArchive";
     public static final String PROPERTY_DUPLICATE_HANDLING = "duplicateHandling";
     public static final String PROPERTY_USE_TEMP_FILE_TIMESTAMP_SUFFIX = "useTempFileTimestampSuffix";
     public static final String PROPERTY_DUPLICATE_HANDLING_THROW_EXCEPTION = "throwException";
     public static final String PROPERTY_DUPLICATE_HANDLING_OVERWRITE = "overwrite";
     public static final String PROPERTY_DUPLICATE_HANDLING_ASS_SEQ_NO = "addSeqNo";
+
+    public static final String PROPERTY_COMPRESSION = "compression";
+    public static final String PROPERTY_COMPRESSION_LEVEL = "compressionLevel";
+
+    public static final String PROPERTY_COMPRESSION_NONE = "none";
+    public static final String PROPERTY_COMPRESSION_ZLIB = "zlib";
+    public static final String PROPERTY_COMPRESSION_ADAPTIVE = "adaptive";
+
+    public static final String PROPERTY_VALIDATION_STRATEGY_CONNECTED = "connected";
+    public static final String PROPERTY_VALIDATION_STRATEGY_PROBE = "probe";
+
+    public static final String PROPERTY_CIPHERS = "ciphers";
+    public static final String PROPERTY_MACS = "macs";
+    public static final String PROPERTY_KEX_ALGORITHMS = "kexAlgorithms";
     public static final String PROPERTY_MAX_CONNECTION_POOL_SIZE = "maxConnectionPoolSize";
     public static final String PROPERTY_KEEP_FILE_ON_ERROR = "keepFileOnError";
+    public static final String PROPERTY_MAX_CHANNELS_PER_SESSION = "maxChannelsPerSession";
+    public static final String PROPERTY_READ_PIPELINE_WINDOW_SIZE = "readPipelineWindowSize";
+    public static final String PROPERTY_READ_PIPELINE_REQUEST_SIZE = "readPipelineRequestSize";
+    public static final String PROPERTY_READ_PIPELINE_MAX_BUFFER_SIZE = "readPipelineMaxBufferSize";
+    public static final String PROPERTY_STREAM_BUFFER_SIZE = "streamBufferSize";
+    public static final String PROPERTY_WRITE_PIPELINE_WINDOW_SIZE = "writePipelineWindowSize";
+    public static final String PROPERTY_WRITE_PIPELINE_REQUEST_SIZE = "writePipelineRequestSize";
+    public static final String PROPERTY_BATCH_SIZE = "batchSize";
+    public static final String PROPERTY_BATCH_MAX_BYTES = "batchMaxBytes";
+    public static final String PROPERTY_BATCH_MAX_WAIT_TIME = "batchMaxWaitTime";
+    public static final String PROPERTY_SEGMENTED_DOWNLOAD_THRESHOLD = "segmentedDownloadThreshold";
+    public static final String PROPERTY_SEGMENTED_DOWNLOAD_PARALLELISM = "segmentedDownloadParallelism";
+    public static final String PROPERTY_SEGMENTED_DOWNLOAD_SPOOL_DIR = "segmentedDownloadSpoolDir";
 
     public static final int DEFAULT_POLLING_FREQUENCY = 1000;
 
@@ -92,7 +128,13 @@ public class SftpConnector extends AbstractConnector
     private String tempDirInbound = null;
     private String tempDirOutbound = null;
 
-    private Map<EndpointURI, GenericObjectPool> pools = new HashMap<EndpointURI, GenericObjectPool>();
+    /**
+     * The connection pools, created lazily per endpoint. Looking up a pool takes no
+     * lock, so borrowing and returning clients only contend on the pool of the
+     * endpoint they use.
+     */
+    private final ConcurrentMap<EndpointURI, GenericObjectPool> pools =
+        new ConcurrentHashMap<EndpointURI, GenericObjectPool>();
 
     private String duplicateHandling = null;
     private Boolean useTempFileTimestampSuffix = null;
@@ -100,6 +142,23 @@ public class SftpConnector extends AbstractConnector
     private String archiveDir = "";
     private String archiveTempReceivingDir = "";
     private String archiveTempSendingDir = "";
+    private Boolean streamingArchive = null;
+
+    /**
+     * Should the subfolders of the inbound endpoint be polled as well? null means
+     * that the endpoint value or the default is used
+     */
+    private Boolean includeSubfolders = null;
+    private Integer maxSubfolderDepth = null;
+    private String subfolderPattern = null;
+    private Integer subfolderParallelism = null;
+
+    /**
+     * Should the receivers only route files that are new or changed since they were
+     * routed last? null means that the endpoint value or the default is used
+     */
+    private Boolean deltaPolling = null;
+    private String snapshotDir = null;
 
     /**
      * Should the file be kept if an error occurs when writing the file on the
@@ -107,11 +166,145 @@ public class SftpConnector extends AbstractConnector
      */
     private Boolean keepFileOnError;
 
+    /**
+     * Number of read requests kept in flight when downloading a file, null means
+     * that the endpoint value or the default is used
+     */
+    private Integer readPipelineWindowSize = null;
+    private Integer readPipelineRequestSize = null;
+    private Long readPipelineMaxBufferSize = null;
+
+    /**
+     * Size of the buffer of the payload stream for small reads, null means that the
+     * endpoint value or the default is used
+     */
+    private Integer streamBufferSize = null;
+
+    /**
+     * Number of buffers in flight when uploading a stream, null means that the
+     * endpoint value or the default is used
+     */
+    private Integer writePipelineWindowSize = null;
+    private Integer writePipelineRequestSize = null;
+
+    /**
+     * The most messages the dispatchers write over one connection in a batch, null
+     * means that the endpoint value or the default is used
+     */
+    private Integer batchSize = null;
+    private Long batchMaxBytes = null;
+    private Long batchMaxWaitTime = null;
+
+    /**
+     * The compression of the ssh sessions: none, zlib or adaptive. null means that
+     * the endpoint value or the default is used
+     */
+    private String compression = null;
+    private Integer compressionLevel = null;
+
+    /**
+     * The algorithms proposed by the ssh sessions, the preferred first. null means
+     * that the endpoint value or the jsch default is used
+     */
+    private String ciphers = null;
+    private String macs = null;
+    private String kexAlgorithms = null;
+
+    /**
+     * If true the AES-CTR ciphers of the proposals are ordered by their throughput
+     * on this JVM, see SftpCipherProbe
+     */
+    private boolean cipherProbe = false;
+
+    /**
+     * Files of at least this size are downloaded in segments over several
+     * connections, null means that the endpoint value or the default is used
+     */
+    private Long segmentedDownloadThreshold = null;
+    private Integer segmentedDownloadParallelism = null;
+    private String segmentedDownloadSpoolDir = null;
+
     /**
      * max pool size. 0 for no pool, -1 for no limit, otherwise the specified value
      */
     private int maxConnectionPoolSize;
 
+    /**
+     * Number of idle connections kept in the pool of an endpoint. The pools of the
+     * inbound endpoints are filled up to this number when they start
+     */
+    private int minIdleConnections = 0;
+
+    private int maxIdleConnections = GenericObjectPool.DEFAULT_MAX_IDLE;
+
+    /**
+     * ms to wait for a connection when the pool is exhausted, negative to wait until
+     * one is released
+     */
+    private long maxConnectionWait = GenericObjectPool.DEFAULT_MAX_WAIT;
+
+    /**
+     * ms between the runs of the evictor of the pools, which closes dead and long
+     * idle connections. 0 or negative for no evictor
+     */
+    private long evictionInterval = 0;
+
+    private long minEvictableIdleTime = GenericObjectPool.DEFAULT_MIN_EVICTABLE_IDLE_TIME_MILLIS;
+
+    /**
+     * ms of inactivity after which the sessions send an ssh keepalive message, 0 for
+     * no keepalive
+     */
+    private int serverAliveInterval = 0;
+
+    /**
+     * Number of keepalive messages without answer after which a session is
+     * disconnected
+     */
+    private int serverAliveCountMax = 3;
+
+    /**
+     * How pooled connections are validated: connected only checks that the
+     * connection has not been closed, probe also checks that the server answers
+     */
+    private String validationStrategy = PROPERTY_VALIDATION_STRATEGY_CONNECTED;
+
+    /**
+     * ms for which a successful probe or remote operation of a connection is
+     * trusted by the probe validation
+     */
+    private long validationCacheTime = 30000;
+
+    /**
+     * ms the probe validation waits for the answer of the server
+     */
+    private long validationTimeout = 10000;
+
+    /**
+     * Max number of clients sharing one ssh session. 0 or 1 for a session per
+     * client
+     */
+    private int maxChannelsPerSession;
+
+    private final SftpSessionMultiplexer sessionMultiplexer = new SftpSessionMultiplexer();
+
+    private final SftpClaimRegistry claimRegistry = new SftpClaimRegistry();
+
+    private final SftpDirectoryCache directoryCache = new SftpDirectoryCache();
+
+    /**
+     * The compressibility of the payloads of the endpoints that use adaptive
+     * compression
+     */
+    private final ConcurrentMap<EndpointURI, SftpCompressionAdvisor> compressionAdvisors = new ConcurrentHashMap<EndpointURI, SftpCompressionAdvisor>();
+
+    /**
+     * The batchers of the outbound endpoints that use batchSize
+     */
+    private final ConcurrentMap<OutboundEndpoint, SftpDispatchBatcher> batchers = new ConcurrentHashMap<OutboundEndpoint, SftpDispatchBatcher>();
+
+    private final SftpUniqueNames uniqueNames = new SftpUniqueNames();
+
     /**
      * Value that can be set via the System property
      * 'mule.sftp.transport.maxConnectionPoolSize'. If it's set the value is used
@@ -192,7 +385,49 @@ public class SftpConnector extends AbstractConnector
 
             // We have to set the working directory before returning
             String dir = endpoint.getEndpointURI().getPath();
-            client.changeWorkingDirectory(dir);
+            try
+            {
+                client.changeWorkingDirectory(dir);
+            }
+            catch (IOException e)
+            {
+                // A connection that died silently may still look connected, only
+                // an error of a connection that still answers is final
+                if (!useConnectionPool() || client.isAlive(0))
+                {
+                    throw e;
+                }
+
+                // A pooled connection that was lost while idle. The other idle
+                // connections may have been lost as well, so each one that is
+                // borrowed next is checked the same way and only dropped if it's
+                // dead, up to the ones that are idle now and then a new one.
+                ObjectPool pool = getClientPool(endpoint);
+                int attempts = pool.getNumIdle() + 1;
+                while (true)
+                {
+                    logger.warn("The pooled connection to " + endpoint.getEndpointURI() + " was lost ("
+                                + e.getMessage() + "), retrying with another connection");
+                    SftpClient lost = client;
+                    client = null;
+                    pool.invalidateObject(lost);
+
+                    client = (SftpClient) pool.borrowObject();
+                    try
+                    {
+                        client.changeWorkingDirectory(dir);
+                        break;
+                    }
+                    catch (IOException retryError)
+                    {
+                        if (--attempts <= 0 || client.isAlive(0))
+                        {
+                            throw retryError;
+                        }
+                        e = retryError;
+                    }
+                }
+            }
             if (logger.isDebugEnabled())
             {
                 logger.debug("Successfully changed working directory to: " + dir);
@@ -217,6 +452,27 @@ public class SftpConnector extends AbstractConnector
         return client;
     }
 
+    /**
+     * Same as {@link #createSftpClient(ImmutableEndpoint)}, but only if the
+     * connection pool of the endpoint has an idle connection or room for a new one,
+     * for callers that can do without the client rather than wait for it.
+     * 
+     * @return the client, null if all connections of the pool are in use
+     */
+    public SftpClient createSftpClientIfAvailable(ImmutableEndpoint endpoint) throws Exception
+    {
+        if (useConnectionPool())
+        {
+            GenericObjectPool pool = (GenericObjectPool) getClientPool(endpoint);
+            int maxActive = pool.getMaxActive();
+            if (maxActive > 0 && pool.getNumIdle() == 0 && pool.getNumActive() >= maxActive)
+            {
+                return null;
+            }
+        }
+        return createSftpClient(endpoint);
+    }
+
     /**
      * @return True if connection pooling is used, otherwise false
      */
@@ -264,33 +520,121 @@ public class SftpConnector extends AbstractConnector
         }
     }
 
-    protected synchronized ObjectPool getClientPool(ImmutableEndpoint endpoint)
+    protected ObjectPool getClientPool(ImmutableEndpoint endpoint)
     {
-        GenericObjectPool pool = pools.get(endpoint.getEndpointURI());
+        EndpointURI uri = endpoint.getEndpointURI();
+        GenericObjectPool pool = pools.get(uri);
 
         if (pool == null)
         {
-            if (logger.isDebugEnabled())
+            GenericObjectPool newPool = createClientPool(endpoint);
+            pool = pools.putIfAbsent(uri, newPool);
+            if (pool == null)
             {
-                logger.debug("Pool is null - creating one for endpoint " + endpoint.getEndpointURI()
-                             + " with max size " + getMaxConnectionPoolSize());
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Pool is null - created one for endpoint " + uri + " with max size "
+                                 + getMaxConnectionPoolSize());
+                }
+                pool = newPool;
+            }
+            else
+            {
+                // Another thread was first, the new pool has no clients yet
+                closePool(newPool);
             }
-            pool = new GenericObjectPool(new SftpConnectionFactory(endpoint), getMaxConnectionPoolSize());
-            pool.setTestOnBorrow(isValidateConnections());
-            pools.put(endpoint.getEndpointURI(), pool);
         }
         else
         {
             if (logger.isDebugEnabled())
             {
-                logger.debug("Using existing pool for endpoint " + endpoint.getEndpointURI() + ". Active: "
-                             + pool.getNumActive() + ", Idle:" + pool.getNumIdle());
+                logger.debug("Using existing pool for endpoint " + uri + ". Active: " + pool.getNumActive()
+                             + ", Idle:" + pool.getNumIdle());
             }
         }
 
         return pool;
     }
 
+    /**
+     * Creates the connection pool of an endpoint, called the first time a client
+     * for the endpoint is requested.
+     */
+    protected GenericObjectPool createClientPool(ImmutableEndpoint endpoint)
+    {
+        GenericObjectPool pool = new GenericObjectPool(new SftpConnectionFactory(endpoint),
+            getMaxConnectionPoolSize());
+        // The probe is meant to catch dead connections before they are used
+        pool.setTestOnBorrow(isValidateConnections() || isProbeValidation());
+        pool.setMaxIdle(maxIdleConnections);
+        pool.setMinIdle(minIdleConnections);
+        pool.setMaxWait(maxConnectionWait);
+        if (evictionInterval > 0)
+        {
+            // Test all idle connections, dropped sessions are removed as well
+            pool.setTimeBetweenEvictionRunsMillis(evictionInterval);
+            pool.setMinEvictableIdleTimeMillis(minEvictableIdleTime);
+            pool.setNumTestsPerEvictionRun(-1);
+            pool.setTestWhileIdle(true);
+        }
+        return pool;
+    }
+
+    /**
+     * Connects minIdleConnections clients for the endpoint ahead of the first
+     * request, in the background so that starting doesn't wait for the server. A
+     * failure is only logged, the clients are connected on demand then.
+     */
+    public void prewarmClientPool(final ImmutableEndpoint endpoint)
+    {
+        if (!useConnectionPool() || minIdleConnections <= 0)
+        {
+            return;
+        }
+
+        final ObjectPool pool = getClientPool(endpoint);
+        SftpThreads.getTransferExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                fillClientPool(endpoint, pool);
+            }
+        });
+    }
+
+    private void fillClientPool(ImmutableEndpoint endpoint, ObjectPool pool)
+    {
+        try
+        {
+            for (int i = pool.getNumIdle(); i < minIdleConnections; i++)
+            {
+                pool.addObject();
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Prewarmed the pool of " + endpoint.getEndpointURI() + " with " + pool.getNumIdle()
+                             + " connections");
+            }
+        }
+        catch (Exception e)
+        {
+            logger.warn("Could not prewarm the connection pool of " + endpoint.getEndpointURI() + ": "
+                        + e.getMessage());
+        }
+    }
+
+    private void closePool(ObjectPool pool)
+    {
+        try
+        {
+            pool.close();
+        }
+        catch (Exception e)
+        {
+            logger.warn("Could not close unused connection pool: " + e.getMessage());
+        }
+    }
+
     /*
      * (non-Javadoc)
      * @see org.mule.transport.AbstractConnector#doConnect()
@@ -336,7 +680,14 @@ public class SftpConnector extends AbstractConnector
      */
     protected void doStart() throws MuleException
     {
-        // Do nothing!
+        if (cipherProbe)
+        {
+            // Probe before the first connection rather than during it
+            SftpCipherProbe.order(ciphers);
+        }
+
+        // The receivers fill the pools of their endpoints when they start, see
+        // prewarmClientPool()
     }
 
     /*
@@ -345,6 +696,13 @@ public class SftpConnector extends AbstractConnector
      */
     protected void doStop() throws MuleException
     {
+        // Write the batches that are waiting while there still are connections
+        for (SftpDispatchBatcher batcher : batchers.values())
+        {
+            batcher.stop();
+        }
+        batchers.clear();
+
         if (logger.isDebugEnabled())
         {
             logger.debug("Stopping all pools");
@@ -363,6 +721,7 @@ public class SftpConnector extends AbstractConnector
         finally
         {
             pools.clear();
+            sessionMultiplexer.disconnectAll();
         }
     }
 
@@ -543,6 +902,76 @@ public class SftpConnector extends AbstractConnector
         return archiveTempSendingDir;
     }
 
+    public void setStreamingArchive(Boolean streamingArchive)
+    {
+        this.streamingArchive = streamingArchive;
+    }
+
+    public Boolean isStreamingArchive()
+    {
+        return streamingArchive;
+    }
+
+    public Boolean isIncludeSubfolders()
+    {
+        return includeSubfolders;
+    }
+
+    public void setIncludeSubfolders(Boolean includeSubfolders)
+    {
+        this.includeSubfolders = includeSubfolders;
+    }
+
+    public Integer getMaxSubfolderDepth()
+    {
+        return maxSubfolderDepth;
+    }
+
+    public void setMaxSubfolderDepth(Integer maxSubfolderDepth)
+    {
+        this.maxSubfolderDepth = maxSubfolderDepth;
+    }
+
+    public String getSubfolderPattern()
+    {
+        return subfolderPattern;
+    }
+
+    public void setSubfolderPattern(String subfolderPattern)
+    {
+        this.subfolderPattern = subfolderPattern;
+    }
+
+    public Integer getSubfolderParallelism()
+    {
+        return subfolderParallelism;
+    }
+
+    public void setSubfolderParallelism(Integer subfolderParallelism)
+    {
+        this.subfolderParallelism = subfolderParallelism;
+    }
+
+    public Boolean isDeltaPolling()
+    {
+        return deltaPolling;
+    }
+
+    public void setDeltaPolling(Boolean deltaPolling)
+    {
+        this.deltaPolling = deltaPolling;
+    }
+
+    public String getSnapshotDir()
+    {
+        return snapshotDir;
+    }
+
+    public void setSnapshotDir(String snapshotDir)
+    {
+        this.snapshotDir = snapshotDir;
+    }
+
     /**
      * @see SftpConnector#maxConnectionPoolSize
      */
@@ -565,6 +994,418 @@ public class SftpConnector extends AbstractConnector
         return maxConnectionPoolSize;
     }
 
+    /**
+     * @see SftpConnector#minIdleConnections
+     */
+    public int getMinIdleConnections()
+    {
+        return minIdleConnections;
+    }
+
+    public void setMinIdleConnections(int minIdleConnections)
+    {
+        this.minIdleConnections = minIdleConnections;
+    }
+
+    public int getMaxIdleConnections()
+    {
+        return maxIdleConnections;
+    }
+
+    public void setMaxIdleConnections(int maxIdleConnections)
+    {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * @see SftpConnector#maxConnectionWait
+     */
+    public long getMaxConnectionWait()
+    {
+        return maxConnectionWait;
+    }
+
+    public void setMaxConnectionWait(long maxConnectionWait)
+    {
+        this.maxConnectionWait = maxConnectionWait;
+    }
+
+    /**
+     * @see SftpConnector#evictionInterval
+     */
+    public long getEvictionInterval()
+    {
+        return evictionInterval;
+    }
+
+    public void setEvictionInterval(long evictionInterval)
+    {
+        this.evictionInterval = evictionInterval;
+    }
+
+    public long getMinEvictableIdleTime()
+    {
+        return minEvictableIdleTime;
+    }
+
+    public void setMinEvictableIdleTime(long minEvictableIdleTime)
+    {
+        this.minEvictableIdleTime = minEvictableIdleTime;
+    }
+
+    /**
+     * @see SftpConnector#serverAliveInterval
+     */
+    public int getServerAliveInterval()
+    {
+        return serverAliveInterval;
+    }
+
+    public void setServerAliveInterval(int serverAliveInterval)
+    {
+        this.serverAliveInterval = serverAliveInterval;
+    }
+
+    /**
+     * @see SftpConnector#serverAliveCountMax
+     */
+    public int getServerAliveCountMax()
+    {
+        return serverAliveCountMax;
+    }
+
+    public void setServerAliveCountMax(int serverAliveCountMax)
+    {
+        this.serverAliveCountMax = serverAliveCountMax;
+    }
+
+    /**
+     * @see SftpConnector#validationStrategy
+     */
+    public String getValidationStrategy()
+    {
+        return validationStrategy;
+    }
+
+    public void setValidationStrategy(String validationStrategy)
+    {
+        this.validationStrategy = validationStrategy;
+    }
+
+    /**
+     * @return True if the validation of pooled connections checks that the server
+     *         answers
+     */
+    public boolean isProbeValidation()
+    {
+        return PROPERTY_VALIDATION_STRATEGY_PROBE.equals(validationStrategy);
+    }
+
+    /**
+     * @see SftpConnector#validationCacheTime
+     */
+    public long getValidationCacheTime()
+    {
+        return validationCacheTime;
+    }
+
+    public void setValidationCacheTime(long validationCacheTime)
+    {
+        this.validationCacheTime = validationCacheTime;
+    }
+
+    /**
+     * @see SftpConnector#validationTimeout
+     */
+    public long getValidationTimeout()
+    {
+        return validationTimeout;
+    }
+
+    public void setValidationTimeout(long validationTimeout)
+    {
+        this.validationTimeout = validationTimeout;
+    }
+
+    public Integer getStreamBufferSize()
+    {
+        return streamBufferSize;
+    }
+
+    public void setStreamBufferSize(Integer streamBufferSize)
+    {
+        this.streamBufferSize = streamBufferSize;
+    }
+
+    public Integer getReadPipelineWindowSize()
+    {
+        return readPipelineWindowSize;
+    }
+
+    public void setReadPipelineWindowSize(Integer readPipelineWindowSize)
+    {
+        this.readPipelineWindowSize = readPipelineWindowSize;
+    }
+
+    public Integer getReadPipelineRequestSize()
+    {
+        return readPipelineRequestSize;
+    }
+
+    public void setReadPipelineRequestSize(Integer readPipelineRequestSize)
+    {
+        this.readPipelineRequestSize = readPipelineRequestSize;
+    }
+
+    public Long getReadPipelineMaxBufferSize()
+    {
+        return readPipelineMaxBufferSize;
+    }
+
+    public void setReadPipelineMaxBufferSize(Long readPipelineMaxBufferSize)
+    {
+        this.readPipelineMaxBufferSize = readPipelineMaxBufferSize;
+    }
+
+    public Integer getWritePipelineWindowSize()
+    {
+        return writePipelineWindowSize;
+    }
+
+    public void setWritePipelineWindowSize(Integer writePipelineWindowSize)
+    {
+        this.writePipelineWindowSize = writePipelineWindowSize;
+    }
+
+    public Integer getWritePipelineRequestSize()
+    {
+        return writePipelineRequestSize;
+    }
+
+    public void setWritePipelineRequestSize(Integer writePipelineRequestSize)
+    {
+        this.writePipelineRequestSize = writePipelineRequestSize;
+    }
+
+    public Integer getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    public Long getBatchMaxBytes()
+    {
+        return batchMaxBytes;
+    }
+
+    public void setBatchMaxBytes(Long batchMaxBytes)
+    {
+        this.batchMaxBytes = batchMaxBytes;
+    }
+
+    public Long getBatchMaxWaitTime()
+    {
+        return batchMaxWaitTime;
+    }
+
+    public void setBatchMaxWaitTime(Long batchMaxWaitTime)
+    {
+        this.batchMaxWaitTime = batchMaxWaitTime;
+    }
+
+    public String getCompression()
+    {
+        return compression;
+    }
+
+    public void setCompression(String compression)
+    {
+        this.compression = compression;
+    }
+
+    public Integer getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(Integer compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public String getCiphers()
+    {
+        return ciphers;
+    }
+
+    public void setCiphers(String ciphers)
+    {
+        this.ciphers = ciphers;
+    }
+
+    public String getMacs()
+    {
+        return macs;
+    }
+
+    public void setMacs(String macs)
+    {
+        this.macs = macs;
+    }
+
+    public String getKexAlgorithms()
+    {
+        return kexAlgorithms;
+    }
+
+    public void setKexAlgorithms(String kexAlgorithms)
+    {
+        this.kexAlgorithms = kexAlgorithms;
+    }
+
+    /**
+     * @see SftpConnector#cipherProbe
+     */
+    public boolean isCipherProbe()
+    {
+        return cipherProbe;
+    }
+
+    public void setCipherProbe(boolean cipherProbe)
+    {
+        this.cipherProbe = cipherProbe;
+    }
+
+    public Long getSegmentedDownloadThreshold()
+    {
+        return segmentedDownloadThreshold;
+    }
+
+    public void setSegmentedDownloadThreshold(Long segmentedDownloadThreshold)
+    {
+        this.segmentedDownloadThreshold = segmentedDownloadThreshold;
+    }
+
+    public Integer getSegmentedDownloadParallelism()
+    {
+        return segmentedDownloadParallelism;
+    }
+
+    public void setSegmentedDownloadParallelism(Integer segmentedDownloadParallelism)
+    {
+        this.segmentedDownloadParallelism = segmentedDownloadParallelism;
+    }
+
+    public String getSegmentedDownloadSpoolDir()
+    {
+        return segmentedDownloadSpoolDir;
+    }
+
+    public void setSegmentedDownloadSpoolDir(String segmentedDownloadSpoolDir)
+    {
+        this.segmentedDownloadSpoolDir = segmentedDownloadSpoolDir;
+    }
+
+    /**
+     * @see SftpConnector#maxChannelsPerSession
+     */
+    public void setMaxChannelsPerSession(int maxChannelsPerSession)
+    {
+        this.maxChannelsPerSession = maxChannelsPerSession;
+    }
+
+    public int getMaxChannelsPerSession()
+    {
+        return maxChannelsPerSession;
+    }
+
+    /**
+     * @return True if several clients share one ssh session, otherwise false
+     */
+    public boolean isUseSessionSharing()
+    {
+        return getMaxChannelsPerSession() > 1;
+    }
+
+    SftpSessionMultiplexer getSessionMultiplexer()
+    {
+        return sessionMultiplexer;
+    }
+
+    /**
+     * @return the files picked up by the receivers of this connector that are not
+     *         done yet
+     */
+    public SftpClaimRegistry getClaimRegistry()
+    {
+        return claimRegistry;
+    }
+
+    /**
+     * @return the remote directories known to exist, used for the temp directories
+     */
+    public SftpDirectoryCache getDirectoryCache()
+    {
+        return directoryCache;
+    }
+
+    /**
+     * @return the names picked by the <code>addSeqNo</code> duplicate handling of
+     *         the dispatchers of this connector
+     */
+    public SftpUniqueNames getUniqueNames()
+    {
+        return uniqueNames;
+    }
+
+    /**
+     * @return the advisor of an endpoint that uses adaptive compression
+     */
+    public SftpCompressionAdvisor getCompressionAdvisor(ImmutableEndpoint endpoint)
+    {
+        EndpointURI uri = endpoint.getEndpointURI();
+        SftpCompressionAdvisor advisor = compressionAdvisors.get(uri);
+        if (advisor == null)
+        {
+            advisor = new SftpCompressionAdvisor();
+            SftpCompressionAdvisor existing = compressionAdvisors.putIfAbsent(uri, advisor);
+            if (existing != null)
+            {
+                advisor = existing;
+            }
+        }
+        return advisor;
+    }
+
+    /**
+     * @return the batcher of the endpoint, null if it does not use batchSize
+     */
+    public SftpDispatchBatcher getDispatchBatcher(OutboundEndpoint endpoint)
+    {
+        SftpDispatchBatcher batcher = batchers.get(endpoint);
+        if (batcher == null)
+        {
+            SftpUtil sftpUtil = new SftpUtil(endpoint);
+            if (sftpUtil.getBatchSize() <= 1)
+            {
+                return null;
+            }
+            batcher = new SftpDispatchBatcher(endpoint, sftpUtil.getBatchSize(), sftpUtil.getBatchMaxBytes(),
+                sftpUtil.getBatchMaxWaitTime());
+            SftpDispatchBatcher existing = batchers.putIfAbsent(endpoint, batcher);
+            if (existing != null)
+            {
+                batcher.stop();
+                batcher = existing;
+            }
+        }
+        return batcher;
+    }
+
     public Boolean isKeepFileOnError()
     {
         return keepFileOnError;
@@ -0,0 +1,83 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.api.endpoint.EndpointURI;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <code>SftpDirectoryCache</code> remembers the remote directories that are known
+ * to exist, per host and user, so the temp directories don't have to be checked
+ * (and created) with a few round trips for every message. The directories of a
+ * host and user are forgotten when an operation that relies on them fails.
+ */
+public class SftpDirectoryCache
+{
+    private final ConcurrentMap<String, ConcurrentMap<String, Boolean>> directories = new ConcurrentHashMap<String, ConcurrentMap<String, Boolean>>();
+
+    /**
+     * @param uri the endpoint, only the host, port and user are used
+     * @param directory the absolute path of the directory
+     * @return true if the directory is known to exist
+     */
+    public boolean contains(EndpointURI uri, String directory)
+    {
+        ConcurrentMap<String, Boolean> known = directories.get(getScope(uri));
+        return known != null && known.containsKey(directory);
+    }
+
+    /**
+     * Remembers that the directory exists
+     */
+    public void add(EndpointURI uri, String directory)
+    {
+        String scope = getScope(uri);
+        ConcurrentMap<String, Boolean> known = directories.get(scope);
+        if (known == null)
+        {
+            known = new ConcurrentHashMap<String, Boolean>();
+            ConcurrentMap<String, Boolean> existing = directories.putIfAbsent(scope, known);
+            if (existing != null)
+            {
+                known = existing;
+            }
+        }
+        known.put(directory, Boolean.TRUE);
+    }
+
+    /**
+     * Forgets all directories of the host and user of the endpoint
+     */
+    public void invalidate(EndpointURI uri)
+    {
+        directories.remove(getScope(uri));
+    }
+
+    /**
+     * @return the number of directories known to exist
+     */
+    public int size()
+    {
+        int size = 0;
+        for (ConcurrentMap<String, Boolean> known : directories.values())
+        {
+            size += known.size();
+        }
+        return size;
+    }
+
+    private static String getScope(EndpointURI uri)
+    {
+        return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort();
+    }
+}
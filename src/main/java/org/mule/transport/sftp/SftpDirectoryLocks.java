@@ -0,0 +1,51 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+/**
+ * <code>SftpDirectoryLocks</code> provides the monitors that serialize checking for
+ * and creating a remote directory, so two threads don't try to create the same
+ * directory at the same time. The locks are striped: the monitor is picked by the
+ * host and absolute path of the directory among a fixed number of monitors, so
+ * threads creating different directories, on the same or on different hosts,
+ * rarely wait for each other.
+ */
+public final class SftpDirectoryLocks
+{
+    private static final int STRIPES = 64;
+
+    private static final Object[] locks = new Object[STRIPES];
+
+    static
+    {
+        for (int i = 0; i < STRIPES; i++)
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    private SftpDirectoryLocks()
+    {
+        // static methods only
+    }
+
+    /**
+     * @param host the host of the directory
+     * @param path the absolute path of the directory
+     * @return the monitor to hold while checking for and creating the directory
+     */
+    public static Object getLock(String host, String path)
+    {
+        int hash = (host + ":" + path).hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.routing.filters.WildcardFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>SftpDirectoryWalker</code> lists the files in the directory of an inbound
+ * endpoint and in its subfolders. The tree is walked one level at a time. The
+ * folders of a level are listed concurrently, by the polling thread and up to
+ * <code>parallelism - 1</code> helper threads from the shared pool of
+ * {@link SftpThreads}, each with a client of its own from the connection pool.
+ * <p/>
+ * The returned entries are named by their path relative to the endpoint
+ * directory. Links are not followed, so a link to a parent folder can't make the
+ * walk loop.
+ */
+public class SftpDirectoryWalker
+{
+    private static final Log logger = LogFactory.getLog(SftpDirectoryWalker.class);
+
+    private final SftpConnector connector;
+    private final ImmutableEndpoint endpoint;
+    private final int parallelism;
+    private final int maxDepth;
+    private final WildcardFilter folderFilter;
+    private final Set<String> excludedFolders;
+
+    /**
+     * @param endpoint the endpoint whose directory is walked
+     * @param parallelism the number of folders listed at the same time
+     * @param maxDepth the number of subfolder levels to walk, negative for no limit
+     * @param folderPattern wildcard pattern(s) the subfolder names must match, null
+     *            for all subfolders
+     * @param excludedFolders folders that are not walked, by their path relative to
+     *            the endpoint directory, e.g. the temp dir
+     */
+    public SftpDirectoryWalker(ImmutableEndpoint endpoint,
+                               int parallelism,
+                               int maxDepth,
+                               String folderPattern,
+                               Set<String> excludedFolders)
+    {
+        this.endpoint = endpoint;
+        this.connector = (SftpConnector) endpoint.getConnector();
+        this.parallelism = Math.max(1, parallelism);
+        this.maxDepth = maxDepth;
+        this.folderFilter = folderPattern == null ? null : new WildcardFilter(folderPattern);
+        this.excludedFolders = excludedFolders == null ? Collections.<String> emptySet() : excludedFolders;
+    }
+
+    /**
+     * @param client a client in the endpoint directory, used by the calling thread
+     * @return the files in the endpoint directory and its subfolders, named by their
+     *         path relative to the endpoint directory
+     * @throws IOException If a folder could not be listed
+     */
+    public List<SftpFileEntry> walk(SftpClient client) throws IOException
+    {
+        List<SftpFileEntry> files = new ArrayList<SftpFileEntry>();
+        List<String> level = Collections.singletonList("");
+        int depth = 0;
+        while (!level.isEmpty())
+        {
+            SftpFileEntry[][] listings = list(client, level);
+            List<String> nextLevel = new ArrayList<String>();
+            boolean descend = maxDepth < 0 || depth < maxDepth;
+            for (int i = 0; i < listings.length; i++)
+            {
+                String folder = level.get(i);
+                if (listings[i] == null)
+                {
+                    continue;
+                }
+                for (SftpFileEntry entry : listings[i])
+                {
+                    String path = folder.length() == 0 ? entry.getName() : folder + "/" + entry.getName();
+                    if (entry.isFile())
+                    {
+                        if (!entry.isLink())
+                        {
+                            files.add(entry.withName(path));
+                        }
+                    }
+                    else if (descend && acceptFolder(path, entry.getName()))
+                    {
+                        nextLevel.add(path);
+                    }
+                }
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Listed " + level.size() + " folders at depth " + depth + " of "
+                             + endpoint.getEndpointURI());
+            }
+            level = nextLevel;
+            depth++;
+        }
+        return files;
+    }
+
+    private boolean acceptFolder(String path, String name)
+    {
+        if (excludedFolders.contains(path))
+        {
+            return false;
+        }
+        return folderFilter == null || folderFilter.accept(name);
+    }
+
+    /**
+     * Lists the folders, concurrently if there is more than one
+     */
+    private SftpFileEntry[][] list(SftpClient client, final List<String> folders) throws IOException
+    {
+        final SftpFileEntry[][] listings = new SftpFileEntry[folders.size()][];
+        final AtomicInteger nextFolder = new AtomicInteger();
+
+        int helperCount = Math.max(0, Math.min(parallelism, folders.size()) - 1);
+        final CountDownLatch done = new CountDownLatch(helperCount);
+        for (int i = 0; i < helperCount; i++)
+        {
+            SftpThreads.getTransferExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    SftpClient helperClient = null;
+                    try
+                    {
+                        if (nextFolder.get() >= folders.size())
+                        {
+                            // The other threads were quicker
+                            return;
+                        }
+                        helperClient = connector.createSftpClient(endpoint);
+                        listFolders(helperClient, folders, nextFolder, listings);
+                    }
+                    catch (Exception e)
+                    {
+                        // The calling thread lists what is left
+                        logger.warn("Could not list folders of " + endpoint.getEndpointURI()
+                                    + " concurrently: " + e.getMessage());
+                    }
+                    finally
+                    {
+                        if (helperClient != null)
+                        {
+                            try
+                            {
+                                connector.releaseClient(endpoint, helperClient);
+                            }
+                            catch (Exception e)
+                            {
+                                logger.error(e.getMessage(), e);
+                            }
+                        }
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        IOException error = null;
+        try
+        {
+            listFolders(client, folders, nextFolder, listings);
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+
+        try
+        {
+            done.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing the folders of " + endpoint.getEndpointURI());
+        }
+        if (error != null)
+        {
+            throw error;
+        }
+        return listings;
+    }
+
+    private void listFolders(SftpClient client,
+                             List<String> folders,
+                             AtomicInteger nextFolder,
+                             SftpFileEntry[][] listings) throws IOException
+    {
+        int i;
+        while ((i = nextFolder.getAndIncrement()) < folders.size())
+        {
+            String folder = folders.get(i);
+            try
+            {
+                listings[i] = client.listFileAndDirectoryEntries(folder.length() == 0 ? "." : folder);
+            }
+            catch (IOException e)
+            {
+                if (folder.length() == 0)
+                {
+                    throw e;
+                }
+                // The folder may have been removed since its parent was listed
+                logger.warn("Could not list the folder " + folder + " of " + endpoint.getEndpointURI() + ": "
+                            + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.OutboundEndpoint;
+import org.mule.transport.sftp.notification.SftpNotifier;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>SftpDispatchBatcher</code> collects the files dispatched to an outbound
+ * endpoint at the same time and writes them one after the other over a single
+ * connection, so the connection is taken from the pool and moved to the endpoint
+ * directory once per batch instead of once per file.
+ * <p/>
+ * A batch is written when it holds <code>batchSize</code> files or
+ * <code>batchMaxBytes</code> bytes, by the thread that completes it, or
+ * <code>batchMaxWaitTime</code> milliseconds after its first file came in, by the
+ * timer thread of the batcher. Every file is written by the
+ * {@link SftpMessageDispatcher} that dispatched it, and its dispatch waits for and
+ * gets the result of its own file.
+ */
+public class SftpDispatchBatcher
+{
+    private static final Log logger = LogFactory.getLog(SftpDispatchBatcher.class);
+
+    private final SftpConnector connector;
+    private final OutboundEndpoint endpoint;
+    private final int maxCount;
+    private final long maxBytes;
+    private final long maxWaitTime;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final Object lock = new Object();
+    private List<Item> pending = new ArrayList<Item>();
+    private long pendingBytes = 0;
+    private int generation = 0;
+    private boolean stopped = false;
+
+    public SftpDispatchBatcher(OutboundEndpoint endpoint, int maxCount, long maxBytes, long maxWaitTime)
+    {
+        this.endpoint = endpoint;
+        this.connector = (SftpConnector) endpoint.getConnector();
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.maxWaitTime = maxWaitTime;
+
+        timer = new ScheduledThreadPoolExecutor(1, SftpThreads.newThreadFactory("sftp-batcher"));
+        // The batch of a flush that is still due is written by stop()
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Adds the file to the current batch and waits until it is written
+     *
+     * @param dispatcher the dispatcher that writes the file
+     * @param filename the requested name of the file
+     * @param inputStream the in-memory content of the file
+     * @param notifier the notifier of the message of the file
+     * @throws Exception If the file could not be written
+     */
+    public void write(SftpMessageDispatcher dispatcher,
+                      String filename,
+                      InputStream inputStream,
+                      SftpNotifier notifier) throws Exception
+    {
+        Item item = new Item(dispatcher, filename, inputStream, notifier);
+        List<Item> batch = null;
+        synchronized (lock)
+        {
+            if (stopped)
+            {
+                batch = new ArrayList<Item>(1);
+                batch.add(item);
+            }
+            else
+            {
+                pending.add(item);
+                pendingBytes += inputStream.available();
+                if (pending.size() >= maxCount || pendingBytes >= maxBytes)
+                {
+                    batch = takePending();
+                }
+                else if (pending.size() == 1)
+                {
+                    scheduleFlush(generation);
+                }
+            }
+        }
+
+        if (batch != null)
+        {
+            writeBatch(batch);
+        }
+        item.await();
+    }
+
+    /**
+     * Writes the files that are waiting, later files are written one by one. Waits
+     * up to the shutdown timeout of Mule for a batch the timer is writing, so that
+     * it still has its connection.
+     */
+    public void stop()
+    {
+        List<Item> batch;
+        synchronized (lock)
+        {
+            stopped = true;
+            batch = takePending();
+        }
+        timer.shutdown();
+        if (!batch.isEmpty())
+        {
+            writeBatch(batch);
+        }
+
+        long timeout = connector.getMuleContext().getConfiguration().getShutdownTimeout();
+        try
+        {
+            if (!timer.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            {
+                logger.warn("Stopped the batcher of " + endpoint.getEndpointURI()
+                            + " while a batch is still being written");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scheduleFlush(final int batchGeneration)
+    {
+        timer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                List<Item> batch = null;
+                synchronized (lock)
+                {
+                    // The batch may have been written when it was full meanwhile
+                    if (generation == batchGeneration && !pending.isEmpty())
+                    {
+                        batch = takePending();
+                    }
+                }
+                if (batch != null)
+                {
+                    writeBatch(batch);
+                }
+            }
+        }, maxWaitTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Must be called holding the lock
+     */
+    private List<Item> takePending()
+    {
+        List<Item> batch = pending;
+        pending = new ArrayList<Item>();
+        pendingBytes = 0;
+        generation++;
+        return batch;
+    }
+
+    private void writeBatch(List<Item> batch)
+    {
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Writing a batch of " + batch.size() + " files to " + endpoint.getEndpointURI());
+        }
+
+        SftpClient client = null;
+        try
+        {
+            for (Item item : batch)
+            {
+                if (client == null)
+                {
+                    try
+                    {
+                        client = connector.createSftpClient(endpoint, item.notifier);
+                    }
+                    catch (Exception e)
+                    {
+                        // The server can't be reached, don't connect again for each
+                        // of the other files
+                        for (Item other : batch)
+                        {
+                            other.done(e);
+                        }
+                        break;
+                    }
+                }
+                else
+                {
+                    client.setNotifier(item.notifier);
+                }
+                try
+                {
+                    item.dispatcher.writeFile(client, item.filename, item.inputStream, false);
+                    item.done(null);
+                }
+                catch (Exception e)
+                {
+                    item.done(e);
+                    if (client != null && !client.isConnected())
+                    {
+                        // Give the next files a fresh connection
+                        releaseClient(client);
+                        client = null;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (client != null)
+            {
+                releaseClient(client);
+            }
+            // Never leave a dispatch waiting, e.g. after an Error
+            for (Item item : batch)
+            {
+                if (!item.isDone())
+                {
+                    item.done(new IllegalStateException("The batch of " + endpoint.getEndpointURI()
+                                                        + " was aborted"));
+                }
+            }
+        }
+    }
+
+    private void releaseClient(SftpClient client)
+    {
+        try
+        {
+            connector.releaseClient(endpoint, client);
+        }
+        catch (Exception e)
+        {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A file of a batch and its result
+     */
+    private static class Item
+    {
+        final SftpMessageDispatcher dispatcher;
+        final String filename;
+        final InputStream inputStream;
+        final SftpNotifier notifier;
+        private final CountDownLatch written = new CountDownLatch(1);
+        private volatile Exception error;
+
+        Item(SftpMessageDispatcher dispatcher, String filename, InputStream inputStream, SftpNotifier notifier)
+        {
+            this.dispatcher = dispatcher;
+            this.filename = filename;
+            this.inputStream = inputStream;
+            this.notifier = notifier;
+        }
+
+        /**
+         * Sets the result, only the first one counts
+         */
+        void done(Exception error)
+        {
+            if (!isDone())
+            {
+                this.error = error;
+                written.countDown();
+            }
+        }
+
+        boolean isDone()
+        {
+            return written.getCount() == 0;
+        }
+
+        void await() throws Exception
+        {
+            written.await();
+            if (error != null)
+            {
+                throw error;
+            }
+        }
+    }
+}
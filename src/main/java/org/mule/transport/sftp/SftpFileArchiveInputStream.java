@@ -3,7 +3,6 @@ package org.mule.transport.sftp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.mule.util.FileUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -86,7 +85,16 @@ public class SftpFileArchiveInputStream extends FileInputStream implements Error
                 logger.info("Move archiveTmpSendingFile (" + file + ") to archiveFolder (" + archiveFile
                             + ")...");
             }
-            FileUtils.moveFile(file, archiveFile);
+            try
+            {
+                SftpUtil.moveFile(file, archiveFile);
+            }
+            catch (IOException e)
+            {
+                // The message has been consumed, a failed archive move must not
+                // fail it
+                logger.error("Could not move " + file + " to the archive " + archiveFile + ": " + e.getMessage());
+            }
         }
     }
 
@@ -0,0 +1,110 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import com.jcraft.jsch.ChannelSftp.LsEntry;
+import com.jcraft.jsch.SftpATTRS;
+
+/**
+ * <code>SftpFileEntry</code> is an immutable snapshot of a remote file as returned
+ * by a directory listing. The attributes are taken from the same <code>ls</code>
+ * response as the name, so no extra <code>stat</code> round trip is needed to
+ * inspect the size or the modification time of a listed file.
+ */
+public class SftpFileEntry
+{
+    private final String name;
+    private final long size;
+    private final long lastModifiedTime;
+    private final int permissions;
+    private final boolean directory;
+    private final boolean link;
+
+    public SftpFileEntry(String name,
+                         long size,
+                         long lastModifiedTime,
+                         int permissions,
+                         boolean directory,
+                         boolean link)
+    {
+        this.name = name;
+        this.size = size;
+        this.lastModifiedTime = lastModifiedTime;
+        this.permissions = permissions;
+        this.directory = directory;
+        this.link = link;
+    }
+
+    static SftpFileEntry fromLsEntry(LsEntry entry)
+    {
+        SftpATTRS attrs = entry.getAttrs();
+        return new SftpFileEntry(entry.getFilename(), attrs.getSize(), attrs.getMTime() * 1000L,
+            attrs.getPermissions(), attrs.isDir(), attrs.isLink());
+    }
+
+    /**
+     * @return the same entry under another name, e.g. a path relative to the
+     *         directory a listing started from
+     */
+    SftpFileEntry withName(String name)
+    {
+        return new SftpFileEntry(name, size, lastModifiedTime, permissions, directory, link);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return the modification time in milliseconds since the epoch (the sftp
+     *         protocol only has a resolution of seconds)
+     */
+    public long getLastModifiedTime()
+    {
+        return lastModifiedTime;
+    }
+
+    /**
+     * @return the posix permission bits, including the file type bits
+     */
+    public int getPermissions()
+    {
+        return permissions;
+    }
+
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+
+    public boolean isLink()
+    {
+        return link;
+    }
+
+    public boolean isFile()
+    {
+        return !directory;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SftpFileEntry{" + "name='" + name + '\'' + ", size=" + size + ", lastModifiedTime="
+               + lastModifiedTime + ", directory=" + directory + '}';
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <code>SftpFileSizeTracker</code> decides if a file has stopped growing by
+ * comparing the size and modification time of consecutive directory listings,
+ * instead of sleeping between two size calls. A file is stable once it has been
+ * listed with the same size and modification time for at least
+ * <code>sizeCheckWaitTime</code> ms.
+ */
+public class SftpFileSizeTracker
+{
+    private final long sizeCheckWaitTime;
+    private final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+
+    /**
+     * @param sizeCheckWaitTime the minimum time in ms a file must keep its size
+     */
+    public SftpFileSizeTracker(long sizeCheckWaitTime)
+    {
+        this.sizeCheckWaitTime = sizeCheckWaitTime;
+    }
+
+    /**
+     * Records the attributes of a listed file.
+     *
+     * @param entry the file as it was listed
+     * @param now the time of the listing
+     * @return true if the file has not changed for <code>sizeCheckWaitTime</code>
+     *         ms, otherwise false
+     */
+    public synchronized boolean isStable(SftpFileEntry entry, long now)
+    {
+        Snapshot previous = snapshots.get(entry.getName());
+        if (previous != null && previous.size == entry.getSize()
+            && previous.lastModifiedTime == entry.getLastModifiedTime())
+        {
+            return now - previous.since >= sizeCheckWaitTime;
+        }
+        snapshots.put(entry.getName(), new Snapshot(entry.getSize(), entry.getLastModifiedTime(), now));
+        return false;
+    }
+
+    /**
+     * Forgets the files that were not listed anymore.
+     *
+     * @param names the names of the files in the current listing
+     */
+    public synchronized void retainAll(Collection<String> names)
+    {
+        snapshots.keySet().retainAll(names);
+    }
+
+    /**
+     * @return the number of files being tracked
+     */
+    public synchronized int size()
+    {
+        return snapshots.size();
+    }
+
+    private static class Snapshot
+    {
+        final long size;
+        final long lastModifiedTime;
+        final long since;
+
+        Snapshot(long size, long lastModifiedTime, long since)
+        {
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+            this.since = since;
+        }
+    }
+}
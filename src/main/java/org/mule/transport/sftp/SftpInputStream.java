@@ -14,18 +14,36 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mule.api.endpoint.ImmutableEndpoint;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <code>SftpInputStream</code> wraps an sftp InputStream.
+ * <p/>
+ * Reads smaller than the buffer are served from a buffer of
+ * <code>streamBufferSize</code> bytes, larger reads go straight to the wrapped
+ * stream. The stream is meant to be read by one thread at a time, so the read
+ * methods are not synchronized. {@link #getChannel()} gives a channel view for
+ * consumers that read into <code>ByteBuffer</code>s.
  */
 
-public class SftpInputStream extends BufferedInputStream implements ErrorOccurredDecorator
+public class SftpInputStream extends InputStream implements ErrorOccurredDecorator
 {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
     private final Log logger = LogFactory.getLog(getClass());
 
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position = 0;
+    private int count = 0;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private ReadableByteChannel channel;
+
     private SftpClient client;
     private boolean autoDelete = true;
     private String fileName;
@@ -40,13 +58,16 @@ public class SftpInputStream extends BufferedInputStream implements ErrorOccurre
         this.fileName = fileName;
     }
 
-    private boolean errorOccured = false;
+    private volatile boolean errorOccured = false;
     private ImmutableEndpoint endpoint;
+    private SftpClaimRegistry.Claim claim;
+    private long fileSize = -1;
 
     // Log every 10 000 000 bytes read at debug-level
     // Good if really large files are transferred and you tend to get nervous by not
     // seeing any progress in the logfile...
     private static final int LOG_BYTE_INTERVAL = 10000000;
+    private final boolean logProgress = logger.isDebugEnabled();
     private long bytesRead = 0;
     private long nextLevelToLogBytesRead = LOG_BYTE_INTERVAL;
 
@@ -54,7 +75,7 @@ public class SftpInputStream extends BufferedInputStream implements ErrorOccurre
      * A special sftp InputStream. The constructor creates the InputStream by calling
      * <code>SftpClient.retrieveFile(fileName)</code>. The client passed in is
      * destroyed when the stream is closed.
-     * 
+     *
      * @param client The SftpClient instance. Will be destroyed when stream closed.
      * @param is The stream that should be used
      * @param fileName name of the file to be retrieved
@@ -68,8 +89,23 @@ public class SftpInputStream extends BufferedInputStream implements ErrorOccurre
                            boolean autoDelete,
                            ImmutableEndpoint endpoint) throws Exception
     {
-        super(is);
+        this(client, is, fileName, autoDelete, endpoint, DEFAULT_BUFFER_SIZE);
+    }
 
+    /**
+     * @param bufferSize the size of the buffer for small reads, 0 for no buffer
+     * @see #SftpInputStream(SftpClient, InputStream, String, boolean,
+     *      ImmutableEndpoint)
+     */
+    public SftpInputStream(SftpClient client,
+                           InputStream is,
+                           String fileName,
+                           boolean autoDelete,
+                           ImmutableEndpoint endpoint,
+                           int bufferSize) throws Exception
+    {
+        this.in = is;
+        this.buffer = new byte[Math.max(0, bufferSize)];
         this.client = client;
         this.fileName = fileName;
         this.autoDelete = autoDelete;
@@ -77,35 +113,138 @@ public class SftpInputStream extends BufferedInputStream implements ErrorOccurre
     }
 
     @Override
-    public synchronized int read() throws IOException
+    public int read() throws IOException
     {
-        logReadBytes(1);
-        return super.read();
+        ensureOpen();
+        if (position >= count)
+        {
+            if (buffer.length == 0)
+            {
+                int b = in.read();
+                logReadBytes(b < 0 ? 0 : 1);
+                return b;
+            }
+            if (fill() <= 0)
+            {
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
     }
 
     @Override
-    public synchronized int read(byte[] b, int off, int len) throws IOException
+    public int read(byte[] b) throws IOException
     {
-        logReadBytes(len);
-        return super.read(b, off, len);
+        return read(b, 0, b.length);
     }
 
     @Override
-    public int read(byte[] b) throws IOException
+    public int read(byte[] b, int off, int len) throws IOException
     {
-        logReadBytes(b.length);
-        return super.read(b);
+        ensureOpen();
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        int buffered = count - position;
+        if (buffered > 0)
+        {
+            int n = Math.min(buffered, len);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        // Bulk reads bypass the buffer
+        if (len >= buffer.length)
+        {
+            int n = in.read(b, off, len);
+            logReadBytes(n);
+            return n;
+        }
+
+        if (fill() <= 0)
+        {
+            return -1;
+        }
+        int n = Math.min(count, len);
+        System.arraycopy(buffer, 0, b, off, n);
+        position = n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        ensureOpen();
+        if (n <= 0)
+        {
+            return 0;
+        }
+        int buffered = count - position;
+        if (buffered > 0)
+        {
+            int skipped = (int) Math.min(buffered, n);
+            position += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        ensureOpen();
+        return (count - position) + in.available();
+    }
+
+    /**
+     * @return a channel view of this stream, closing the channel closes the stream
+     */
+    public ReadableByteChannel getChannel()
+    {
+        if (channel == null)
+        {
+            channel = new SftpInputStreamChannel();
+        }
+        return channel;
+    }
+
+    private int fill() throws IOException
+    {
+        position = 0;
+        count = 0;
+        int n = in.read(buffer, 0, buffer.length);
+        logReadBytes(n);
+        if (n > 0)
+        {
+            count = n;
+        }
+        return n;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (closed.get())
+        {
+            throw new IOException("Stream closed: " + fileName);
+        }
     }
 
     public void close() throws IOException
     {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
         if (logger.isDebugEnabled())
         {
             logger.debug("Closing the stream for the file " + fileName);
         }
         try
         {
-            super.close();
+            in.close();
 
             if (autoDelete && !errorOccured)
             {
@@ -129,9 +268,34 @@ public class SftpInputStream extends BufferedInputStream implements ErrorOccurre
             {
                 logger.error(e.getMessage(), e);
             }
+            if (claim != null)
+            {
+                claim.release();
+            }
         }
     }
 
+    /**
+     * @return the size of the remote file when it was retrieved, -1 if unknown
+     */
+    public long getFileSize()
+    {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize)
+    {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * @param claim the claim of the file, released when the stream is closed
+     */
+    public void setClaim(SftpClaimRegistry.Claim claim)
+    {
+        this.claim = claim;
+    }
+
     public void setErrorOccurred()
     {
         if (logger.isDebugEnabled()) logger.debug("setErrorOccurred() called");
@@ -147,7 +311,7 @@ public class SftpInputStream extends BufferedInputStream implements ErrorOccurre
 
     private void logReadBytes(int newBytesRead)
     {
-        if (!logger.isDebugEnabled()) return;
+        if (!logProgress || newBytesRead <= 0) return;
 
         this.bytesRead += newBytesRead;
         if (this.bytesRead >= nextLevelToLogBytesRead)
@@ -157,4 +321,58 @@ public class SftpInputStream extends BufferedInputStream implements ErrorOccurre
         }
     }
 
+    /**
+     * Reads heap buffers straight into their backing array, direct buffers through
+     * a transfer array
+     */
+    private class SftpInputStreamChannel implements ReadableByteChannel
+    {
+        private byte[] transfer;
+
+        public int read(ByteBuffer dst) throws IOException
+        {
+            if (closed.get())
+            {
+                throw new ClosedChannelException();
+            }
+            int len = dst.remaining();
+            if (len == 0)
+            {
+                return 0;
+            }
+
+            int n;
+            if (dst.hasArray())
+            {
+                n = SftpInputStream.this.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+                if (n > 0)
+                {
+                    dst.position(dst.position() + n);
+                }
+            }
+            else
+            {
+                if (transfer == null)
+                {
+                    transfer = new byte[Math.max(DEFAULT_BUFFER_SIZE, buffer.length) * 8];
+                }
+                n = SftpInputStream.this.read(transfer, 0, Math.min(len, transfer.length));
+                if (n > 0)
+                {
+                    dst.put(transfer, 0, n);
+                }
+            }
+            return n;
+        }
+
+        public boolean isOpen()
+        {
+            return !closed.get();
+        }
+
+        public void close() throws IOException
+        {
+            SftpInputStream.this.close();
+        }
+    }
 }
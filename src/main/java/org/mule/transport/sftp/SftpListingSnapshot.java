@@ -0,0 +1,304 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * <code>SftpListingSnapshot</code> remembers the files an inbound endpoint has
+ * routed, with the size and modification time they had, so the endpoint can skip
+ * them until they change. It is used by the <code>deltaPolling</code> mode.
+ * <p/>
+ * To keep millions of files in little memory, a file is stored as two longs in an
+ * open addressing table: a 64 bit hash of its name and a 64 bit fingerprint of its
+ * size and modification time, about 32 bytes per file. Two names would have to
+ * share a hash for a file to be skipped by mistake, which is very unlikely even
+ * for millions of files.
+ * <p/>
+ * The snapshot is saved to and loaded from a local file, so a restart does not
+ * route all files again.
+ */
+public class SftpListingSnapshot
+{
+    private static final Log logger = LogFactory.getLog(SftpListingSnapshot.class);
+
+    private static final int MAGIC = 0x53465450;
+    private static final int VERSION = 1;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The name hashes, 0 marks a free slot
+     */
+    private long[] keys;
+    private long[] fingerprints;
+    private int size;
+    private boolean dirty;
+
+    public SftpListingSnapshot()
+    {
+        keys = new long[MIN_CAPACITY];
+        fingerprints = new long[MIN_CAPACITY];
+    }
+
+    /**
+     * @return true if the file was routed with the same size and modification time
+     */
+    public synchronized boolean isUnchanged(SftpFileEntry entry)
+    {
+        int slot = find(keys, hash(entry.getName()));
+        return keys[slot] != 0 && fingerprints[slot] == fingerprint(entry);
+    }
+
+    /**
+     * Remembers that the file was routed
+     */
+    public synchronized void put(SftpFileEntry entry)
+    {
+        long key = hash(entry.getName());
+        long fingerprint = fingerprint(entry);
+        int slot = find(keys, key);
+        if (keys[slot] == 0)
+        {
+            if ((size + 1) * 4 > keys.length * 3)
+            {
+                resize(keys.length * 2);
+                slot = find(keys, key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        else if (fingerprints[slot] == fingerprint)
+        {
+            return;
+        }
+        fingerprints[slot] = fingerprint;
+        dirty = true;
+    }
+
+    /**
+     * Forgets the files that are not in the listing any more
+     *
+     * @param listing all files of the endpoint
+     */
+    public synchronized void retain(SftpFileEntry[] listing)
+    {
+        long[] retainedKeys = new long[capacityFor(Math.min(size, listing.length))];
+        long[] retainedFingerprints = new long[retainedKeys.length];
+        int retained = 0;
+        for (SftpFileEntry entry : listing)
+        {
+            long key = hash(entry.getName());
+            int slot = find(keys, key);
+            if (keys[slot] != 0)
+            {
+                int newSlot = find(retainedKeys, key);
+                if (retainedKeys[newSlot] == 0)
+                {
+                    retainedKeys[newSlot] = key;
+                    retainedFingerprints[newSlot] = fingerprints[slot];
+                    retained++;
+                }
+            }
+        }
+        if (retained < size)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Forgetting " + (size - retained) + " files that are gone");
+            }
+            keys = retainedKeys;
+            fingerprints = retainedFingerprints;
+            size = retained;
+            dirty = true;
+        }
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return true if the snapshot changed since it was loaded or saved
+     */
+    public synchronized boolean isDirty()
+    {
+        return dirty;
+    }
+
+    /**
+     * Replaces the content of the snapshot with the one saved in the file. A
+     * missing or unreadable file leaves the snapshot empty.
+     */
+    public synchronized void load(File file) throws IOException
+    {
+        keys = new long[MIN_CAPACITY];
+        fingerprints = new long[MIN_CAPACITY];
+        size = 0;
+        dirty = false;
+        if (!file.exists())
+        {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                logger.warn("Ignoring the listing snapshot " + file + ", it has an unknown format");
+                return;
+            }
+            int count = in.readInt();
+            long[] loadedKeys = new long[capacityFor(count)];
+            long[] loadedFingerprints = new long[loadedKeys.length];
+            for (int i = 0; i < count; i++)
+            {
+                long key = in.readLong();
+                int slot = find(loadedKeys, key);
+                loadedKeys[slot] = key;
+                loadedFingerprints[slot] = in.readLong();
+            }
+            keys = loadedKeys;
+            fingerprints = loadedFingerprints;
+            size = count;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves the snapshot to the file. It is written to a temp file next to it
+     * first, so a crash never leaves a half written snapshot behind.
+     */
+    public synchronized void save(File file) throws IOException
+    {
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (!folder.exists() && !folder.mkdirs())
+        {
+            throw new IOException("Failed to create the snapshot folder " + folder);
+        }
+
+        File tempFile = new File(folder, file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile),
+            64 * 1024));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (keys[i] != 0)
+                {
+                    out.writeLong(keys[i]);
+                    out.writeLong(fingerprints[i]);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(file))
+        {
+            // Windows does not rename over an existing file
+            file.delete();
+            if (!tempFile.renameTo(file))
+            {
+                throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+        }
+        dirty = false;
+    }
+
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        long[] oldFingerprints = fingerprints;
+        keys = new long[capacity];
+        fingerprints = new long[capacity];
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != 0)
+            {
+                int slot = find(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                fingerprints[slot] = oldFingerprints[i];
+            }
+        }
+    }
+
+    /**
+     * @return the slot of the key, or the free slot it would go to
+     */
+    private static int find(long[] table, long key)
+    {
+        int mask = table.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (table[slot] != 0 && table[slot] != key)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the smallest power of two that holds the number of files at a load
+     *         factor of at most 0.75
+     */
+    private static int capacityFor(int count)
+    {
+        int capacity = MIN_CAPACITY;
+        while (count * 4L > capacity * 3L)
+        {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the name, never 0
+     */
+    static long hash(String name)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        // Spread the bits, the table uses the low ones
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long fingerprint(SftpFileEntry entry)
+    {
+        return entry.getSize() * 0x9e3779b97f4a7c15L ^ entry.getLastModifiedTime();
+    }
+}
@@ -17,25 +17,45 @@ import org.mule.transport.AbstractMessageDispatcher;
 import org.mule.transport.sftp.notification.SftpNotifier;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 
 /**
  * <code>SftpMessageDispatcher</code> dispatches files via sftp to a remote sftp
  * service. This dispatcher reads an InputStream, byte[], or String payload, which is
  * then streamed to the SFTP endpoint.
+ * <p/>
+ * If the endpoint uses <code>batchSize</code>, byte[] and String payloads are
+ * handed to the {@link SftpDispatchBatcher} of the endpoint, which writes the files
+ * of a batch over one connection.
  */
 
 public class SftpMessageDispatcher extends AbstractMessageDispatcher
 {
 
+    /**
+     * How often a file written to the temp dir is moved to the next free name when
+     * <code>addSeqNo</code> names are taken by other processes meanwhile
+     */
+    private static final int MAX_RENAME_ATTEMPTS = 10;
+
     private SftpConnector connector;
     private SftpUtil sftpUtil = null;
+    private final boolean batching;
+
+    /**
+     * Set if the endpoint uses adaptive compression
+     */
+    private final SftpCompressionAdvisor compressionAdvisor;
 
     public SftpMessageDispatcher(OutboundEndpoint endpoint)
     {
         super(endpoint);
         connector = (SftpConnector) endpoint.getConnector();
         sftpUtil = new SftpUtil(endpoint);
+        batching = sftpUtil.getBatchSize() > 1;
+        compressionAdvisor = sftpUtil.isAdaptiveCompression() ? connector.getCompressionAdvisor(endpoint) : null;
     }
 
     // protected void doConnect() throws Exception
@@ -104,7 +124,7 @@ public class SftpMessageDispatcher extends AbstractMessageDispatcher
 
         // byte[], String, or InputStream payloads supported.
 
-        byte[] buf;
+        byte[] buf = null;
         InputStream inputStream;
 
         if (data instanceof byte[])
@@ -118,7 +138,8 @@ public class SftpMessageDispatcher extends AbstractMessageDispatcher
         }
         else if (data instanceof String)
         {
-            inputStream = new ByteArrayInputStream(((String) data).getBytes());
+            buf = ((String) data).getBytes();
+            inputStream = new ByteArrayInputStream(buf);
 
         }
         else
@@ -134,34 +155,122 @@ public class SftpMessageDispatcher extends AbstractMessageDispatcher
 
         }
 
+        String serviceName = (event.getFlowConstruct() == null)
+                                                               ? "UNKNOWN SERVICE"
+                                                               : event.getFlowConstruct().getName();
+        SftpNotifier notifier = new SftpNotifier(connector, event.getMessage(), endpoint, serviceName);
+
+        // Streams are written as they come, only in-memory payloads are batched
+        SftpDispatchBatcher batcher = null;
+        if (batching && !(data instanceof InputStream))
+        {
+            batcher = connector.getDispatchBatcher(getEndpoint());
+        }
         SftpClient client = null;
+        try
+        {
+            // Adaptive compression looks at the start of the payload first
+            InputStream transferStream = inputStream;
+            if (compressionAdvisor != null)
+            {
+                if (buf != null)
+                {
+                    compressionAdvisor.sample(buf, 0, buf.length);
+                }
+                else
+                {
+                    transferStream = sampleStream(inputStream);
+                }
+            }
+
+            if (batcher != null)
+            {
+                batcher.write(this, filename, transferStream, notifier);
+            }
+            else
+            {
+                client = connector.createSftpClient(endpoint, notifier);
+
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Connection setup successful, writing file.");
+                }
+
+                writeFile(client, filename, transferStream, data instanceof InputStream);
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Unexpected exception attempting to write file, message was: " + e.getMessage(), e);
+
+            sftpUtil.setErrorOccurredOnInputStream(inputStream);
+            throw e;
+        }
+        finally
+        {
+            if (client != null)
+            {
+                // If the connection fails, the client will be null, otherwise
+                // disconnect.
+                connector.releaseClient(endpoint, client);
+            }
+            // else
+            // {
+            // logger.warn("Unexpected null SFTPClient instance - operation probably failed ...");
+            // }
+
+            inputStream.close();
+
+        }
+
+    }
+
+    /**
+     * Writes one file with a client that is in the endpoint directory
+     *
+     * @param filename the requested name of the file
+     * @param streamed true if the payload is an InputStream, which is uploaded
+     *            pipelined if configured
+     * @throws Exception If the file could not be written
+     */
+    void writeFile(SftpClient client, String filename, InputStream inputStream, boolean streamed)
+        throws Exception
+    {
         boolean useTempDir = false;
         String transferFilename = null;
+        SftpUniqueNames uniqueNames = connector.getUniqueNames();
+        String reservedPath = null;
 
         try
         {
-            String serviceName = (event.getFlowConstruct() == null)
-                                                                   ? "UNKNOWN SERVICE"
-                                                                   : event.getFlowConstruct().getName();
-            SftpNotifier notifier = new SftpNotifier(connector, event.getMessage(), endpoint, serviceName);
-            client = connector.createSftpClient(endpoint, notifier);
             String destDir = endpoint.getEndpointURI().getPath();
 
-            if (logger.isDebugEnabled())
+            if (compressionAdvisor != null
+                && (streamed || inputStream.available() >= SftpCompressionAdvisor.MIN_ADAPTIVE_SIZE))
             {
-                logger.debug("Connection setup successful, writing file.");
+                client.setCompression(compressionAdvisor.isCompressionWorthwhile());
             }
 
-            // Duplicate Handling
-            filename = client.duplicateHandling(destDir, filename, sftpUtil.getDuplicateHandling());
+            // Duplicate Handling, a name picked by addSeqNo is reserved until the
+            // file is written
+            String duplicateHandling = sftpUtil.getDuplicateHandling();
+            boolean addSeqNo = SftpConnector.PROPERTY_DUPLICATE_HANDLING_ASS_SEQ_NO.equals(duplicateHandling);
+            boolean overwrite = SftpConnector.PROPERTY_DUPLICATE_HANDLING_OVERWRITE.equals(duplicateHandling);
+            String requestedFilename = filename;
+            filename = client.duplicateHandling(destDir, filename, duplicateHandling, uniqueNames);
+            if (addSeqNo)
+            {
+                reservedPath = client.getAbsolutePath(destDir + "/" + filename);
+            }
             transferFilename = filename;
 
             useTempDir = sftpUtil.isUseTempDirOutbound();
+            String transferPath = transferFilename;
             if (useTempDir)
             {
-                // TODO move to a init-method like doConnect?
-                // cd to tempDir and create it if it doesn't already exist
-                sftpUtil.cwdToTempDirOnOutbound(client, destDir);
+                // Create tempDir if it doesn't already exist. The working directory
+                // stays at destDir, the file is written relative to it
+                sftpUtil.createTempDirOnOutboundIfNotExists(client, destDir);
 
                 // Add unique file-name (if configured) for use during transfer to
                 // temp-dir
@@ -170,27 +279,63 @@ public class SftpMessageDispatcher extends AbstractMessageDispatcher
                 {
                     transferFilename = sftpUtil.createUniqueSuffix(transferFilename);
                 }
+                transferPath = sftpUtil.getTempDirOutbound() + "/" + transferFilename;
             }
 
-            // send file over sftp
-            client.storeFile(transferFilename, inputStream);
+            // send file over sftp, in-memory payloads gain nothing from pipelining
+            if (streamed)
+            {
+                client.storeFile(transferPath, inputStream, sftpUtil.getWritePipelineWindowSize(),
+                    sftpUtil.getWritePipelineRequestSize());
+            }
+            else
+            {
+                client.storeFile(transferPath, inputStream);
+            }
 
-            if (useTempDir)
+            if (useTempDir && overwrite)
+            {
+                // Move the file to its final destination, replacing an existing file
+                client.replace(transferPath, destDir + "/" + filename);
+            }
+            else if (useTempDir)
             {
                 // Move the file to its final destination
-                client.rename(transferFilename, destDir + "/" + filename);
+                int attempts = 0;
+                while (true)
+                {
+                    try
+                    {
+                        client.rename(transferPath, destDir + "/" + filename);
+                        break;
+                    }
+                    catch (IOException e)
+                    {
+                        // Renames don't replace an existing file, if another process
+                        // wrote a file with the name meanwhile pick the next free one
+                        if (!addSeqNo || ++attempts > MAX_RENAME_ATTEMPTS
+                            || !client.exists(destDir + "/" + filename))
+                        {
+                            throw e;
+                        }
+                        uniqueNames.release(client.getHost(), reservedPath);
+                        reservedPath = null;
+                        filename = client.duplicateHandling(destDir, requestedFilename, duplicateHandling,
+                            uniqueNames);
+                        reservedPath = client.getAbsolutePath(destDir + "/" + filename);
+                    }
+                }
             }
 
             logger.info("Successfully wrote file '" + filename + "' to " + endpoint.getEndpointURI());
         }
         catch (Exception e)
         {
-            logger.error("Unexpected exception attempting to write file, message was: " + e.getMessage(), e);
-
-            sftpUtil.setErrorOccurredOnInputStream(inputStream);
-
             if (useTempDir)
             {
+                // The temp dir may have been removed, check it again next time
+                sftpUtil.invalidateDirectoryCache();
+
                 // Cleanup the remote temp dir from the not fullt completely
                 // transferred file!
                 String tempDir = sftpUtil.getTempDirOutbound();
@@ -200,21 +345,31 @@ public class SftpMessageDispatcher extends AbstractMessageDispatcher
         }
         finally
         {
-            if (client != null)
+            if (reservedPath != null)
             {
-                // If the connection fails, the client will be null, otherwise
-                // disconnect.
-                connector.releaseClient(endpoint, client);
+                uniqueNames.release(client.getHost(), reservedPath);
             }
-            // else
-            // {
-            // logger.warn("Unexpected null SFTPClient instance - operation probably failed ...");
-            // }
-
-            inputStream.close();
-
         }
+    }
 
+    /**
+     * Samples the start of a stream payload for adaptive compression
+     *
+     * @return a stream that still starts with the sampled bytes
+     */
+    private InputStream sampleStream(InputStream inputStream) throws IOException
+    {
+        PushbackInputStream pushback = new PushbackInputStream(inputStream, SftpCompressionAdvisor.SAMPLE_SIZE);
+        byte[] sample = new byte[SftpCompressionAdvisor.SAMPLE_SIZE];
+        int length = 0;
+        int n;
+        while (length < sample.length && (n = inputStream.read(sample, length, sample.length - length)) != -1)
+        {
+            length += n;
+        }
+        pushback.unread(sample, 0, length);
+        compressionAdvisor.sample(sample, 0, length);
+        return pushback;
     }
 
     protected MuleMessage doSend(MuleEvent event) throws Exception
@@ -10,8 +10,10 @@
 
 package org.mule.transport.sftp;
 
+import org.mule.api.MuleException;
 import org.mule.api.MuleMessage;
 import org.mule.api.construct.FlowConstruct;
+import org.mule.api.context.WorkManager;
 import org.mule.api.endpoint.InboundEndpoint;
 import org.mule.api.lifecycle.CreateException;
 import org.mule.construct.SimpleFlowConstruct;
@@ -20,17 +22,40 @@ import org.mule.transport.sftp.notification.SftpNotifier;
 
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkException;
 
 /**
  * <code>SftpMessageReceiver</code> polls and receives files from an sftp service
  * using jsch. This receiver produces an InputStream payload, which can be
  * materialized in a MessageDispatcher or Component.
+ * <p/>
+ * When the connector uses a connection pool, the files found by a poll are routed
+ * concurrently on the receiver threads of the connector, up to
+ * <code>maxConnectionPoolSize</code> files at a time (the maximum number of
+ * receiver threads if the pool size is unlimited). A poll waits until fewer files
+ * are being routed before it hands over the next file, and stopping the receiver
+ * waits for the files being routed.
+ * <p/>
+ * Each file is claimed in the {@link SftpClaimRegistry} of the connector until the
+ * stream of its message is closed or routing it fails, later polls skip the file
+ * meanwhile.
+ * <p/>
+ * With <code>deltaPolling</code> a file is only routed again once its size or
+ * modification time changes. The routed files are saved to a snapshot file by
+ * the next poll and when the receiver stops.
  */
 public class SftpMessageReceiver extends AbstractPollingMessageReceiver
 {
 
     private SftpReceiverRequesterUtil sftpRRUtil = null;
 
+    private volatile Semaphore freeWorkers = null;
+    private int workerCount = 1;
+
     public SftpMessageReceiver(SftpConnector connector,
                                SimpleFlowConstruct flow,
                                InboundEndpoint endpoint,
@@ -74,11 +99,8 @@ public class SftpMessageReceiver extends AbstractPollingMessageReceiver
                     logger.debug("Pooling. " + files.length + " files found at " + endpoint.getEndpointURI()
                                  + ":" + Arrays.toString(files));
                 }
-                for (String file : files)
-                {
-                    routeFile(file);
-                }
-                if (logger.isDebugEnabled())
+                routeFiles(files);
+                if (logger.isDebugEnabled() && freeWorkers == null)
                 {
                     logger.debug("Pooling. Routed all " + files.length + " files found at "
                                  + endpoint.getEndpointURI());
@@ -92,28 +114,164 @@ public class SftpMessageReceiver extends AbstractPollingMessageReceiver
         }
     }
 
-    protected void routeFile(String path) throws Exception
+    /**
+     * Claims and routes the files, concurrently if there are several workers.
+     */
+    void routeFiles(String[] files) throws Exception
+    {
+        SftpClaimRegistry claims = ((SftpConnector) connector).getClaimRegistry();
+        Semaphore workers = freeWorkers;
+        for (String file : files)
+        {
+            if (workers != null && !isStarted())
+            {
+                break;
+            }
+            SftpClaimRegistry.Claim claim = claims.claim(endpoint.getEndpointURI(), file);
+            if (claim == null)
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Skipping file " + file + ", it is still being processed");
+                }
+                continue;
+            }
+            if (workers == null)
+            {
+                routeFile(file, claim);
+            }
+            else
+            {
+                dispatchFile(file, claim, workers);
+            }
+        }
+    }
+
+    /**
+     * Hands the file over to a receiver thread, waits until fewer files are being
+     * routed if all workers are busy. The file is routed by the polling thread if
+     * the work manager rejects the work.
+     */
+    private void dispatchFile(final String path, final SftpClaimRegistry.Claim claim, final Semaphore workers)
+        throws Exception
+    {
+        boolean acquired = false;
+        try
+        {
+            workers.acquire();
+            acquired = true;
+        }
+        finally
+        {
+            if (!acquired)
+            {
+                claim.release();
+            }
+        }
+
+        WorkManager workManager = getWorkManager();
+        if (workManager != null)
+        {
+            try
+            {
+                workManager.scheduleWork(new Work()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            routeFile(path, claim);
+                        }
+                        catch (Exception e)
+                        {
+                            logger.error("Error routing file " + path, e);
+                            getConnector().getMuleContext().getExceptionListener().handleException(e);
+                        }
+                        finally
+                        {
+                            workers.release();
+                        }
+                    }
+
+                    public void release()
+                    {
+                        // nothing to release
+                    }
+                });
+                return;
+            }
+            catch (WorkException e)
+            {
+                logger.warn("Could not schedule the routing of " + path + ", routing it on the polling thread: "
+                            + e.getMessage());
+            }
+        }
+
+        try
+        {
+            routeFile(path, claim);
+        }
+        finally
+        {
+            workers.release();
+        }
+    }
+
+    /**
+     * @return the number of files to route concurrently, 1 if the files are routed
+     *         by the polling thread
+     */
+    protected int getWorkerCount()
+    {
+        SftpConnector sftpConnector = (SftpConnector) connector;
+        if (!sftpConnector.useConnectionPool())
+        {
+            return 1;
+        }
+        int poolSize = sftpConnector.getMaxConnectionPoolSize();
+        return poolSize > 0 ? poolSize : connector.getReceiverThreadingProfile().getMaxThreadsActive();
+    }
+
+    /**
+     * @param path the file to route
+     * @param claim the claim of the file, released when the stream of the message
+     *            is closed or if routing fails
+     */
+    protected void routeFile(String path, SftpClaimRegistry.Claim claim) throws Exception
     {
         // A bit tricky initialization of the notifier in this case since we don't
         // have access to the message yet...
         SftpNotifier notifier = new SftpNotifier((SftpConnector) connector, createNullMuleMessage(),
             endpoint, flowConstruct.getName());
 
-        InputStream inputStream = sftpRRUtil.retrieveFile(path, notifier);
-
-        if (logger.isDebugEnabled())
+        try
         {
-            logger.debug("Routing file: " + path);
-        }
+            InputStream inputStream = sftpRRUtil.retrieveFile(path, notifier, claim);
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Routing file: " + path);
+            }
 
-        MuleMessage message = createMuleMessage(inputStream);
+            MuleMessage message = createMuleMessage(inputStream);
 
-        message.setOutboundProperty(SftpConnector.PROPERTY_FILENAME, path);
-        message.setOutboundProperty(SftpConnector.PROPERTY_ORIGINAL_FILENAME, path);
+            // Files found in subfolders come with their path relative to the endpoint
+            int idx = path.lastIndexOf('/');
+            String name = path.substring(idx + 1);
+            message.setOutboundProperty(SftpConnector.PROPERTY_FILENAME, name);
+            message.setOutboundProperty(SftpConnector.PROPERTY_ORIGINAL_FILENAME, name);
+            message.setOutboundProperty(SftpConnector.PROPERTY_RELATIVE_PATH, idx < 0 ? "" : path.substring(0, idx));
 
-        // Now we have access to the message, update the notifier with the message
-        notifier.setMessage(message);
-        routeMessage(message);
+            // Now we have access to the message, update the notifier with the message
+            notifier.setMessage(message);
+            routeMessage(message);
+            sftpRRUtil.fileRouted(path);
+        }
+        catch (Exception e)
+        {
+            claim.release();
+            throw e;
+        }
 
         if (logger.isDebugEnabled())
         {
@@ -130,8 +288,15 @@ public class SftpMessageReceiver extends AbstractPollingMessageReceiver
     protected MuleMessage handleUnacceptedFilter(MuleMessage message) {
         logger.debug("the filter said no, now trying to close the payload stream");
         try {
-            final SftpInputStream payload = (SftpInputStream) message.getPayload();
-            payload.close();
+            // The payload may also be an archive stream, which closes the SftpInputStream
+            final Object payload = message.getPayload();
+            if (payload instanceof SftpTeeArchiveInputStream) {
+                // Don't download the rest of the file just to archive it
+                ((SftpTeeArchiveInputStream) payload).abandon();
+            }
+            else if (payload instanceof InputStream) {
+                ((InputStream) payload).close();
+            }
         }
         catch (Exception e) {
             logger.debug("unable to close payload stream", e);
@@ -139,6 +304,57 @@ public class SftpMessageReceiver extends AbstractPollingMessageReceiver
         return super.handleUnacceptedFilter(message);
     }
     
+    @Override
+    protected void doStart() throws MuleException
+    {
+        sftpRRUtil.initDeltaPolling();
+        ((SftpConnector) connector).prewarmClientPool(endpoint);
+
+        workerCount = getWorkerCount();
+        if (workerCount > 1)
+        {
+            freeWorkers = new Semaphore(workerCount);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Routing up to " + workerCount + " files of " + endpoint.getEndpointURI()
+                             + " concurrently");
+            }
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws MuleException
+    {
+        super.doStop();
+        Semaphore workers = freeWorkers;
+        if (workers != null)
+        {
+            // Let the workers finish the files they are routing, the snapshot must
+            // include them
+            freeWorkers = null;
+            awaitWorkers(workers);
+        }
+        sftpRRUtil.saveSnapshot();
+    }
+
+    private void awaitWorkers(Semaphore workers)
+    {
+        long timeout = connector.getMuleContext().getConfiguration().getShutdownTimeout();
+        try
+        {
+            if (!workers.tryAcquire(workerCount, timeout, TimeUnit.MILLISECONDS))
+            {
+                logger.warn("Stopped " + endpoint.getEndpointURI() + " while "
+                            + (workerCount - workers.availablePermits()) + " files are still being routed");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void doConnect() throws Exception
     {
         // no op
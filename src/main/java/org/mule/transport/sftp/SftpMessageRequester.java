@@ -30,8 +30,23 @@ public class SftpMessageRequester extends AbstractMessageRequester
     @Override
     protected MuleMessage doRequest(long timeout) throws Exception
     {
+        long start = System.currentTimeMillis();
         String[] files = sftpRRUtil.getAvailableFiles(true);
 
+        // There is no next poll for a requester, so give files that were seen for
+        // the first time a second look once the size check wait time has passed,
+        // as far as the timeout of the request allows
+        long sizeCheckWaitTime = sftpRRUtil.getSizeCheckWaitTime();
+        if (files.length == 0 && sizeCheckWaitTime > 0 && sftpRRUtil.getDeferredFileCount() > 0)
+        {
+            long remaining = timeout - (System.currentTimeMillis() - start);
+            if (remaining > 0)
+            {
+                Thread.sleep(Math.min(sizeCheckWaitTime, remaining));
+                files = sftpRRUtil.getAvailableFiles(true);
+            }
+        }
+
         if (files.length == 0) return null;
 
         String path = files[0];
@@ -45,7 +60,11 @@ public class SftpMessageRequester extends AbstractMessageRequester
         logger.debug("Routing file: " + path);
 
         MuleMessage message = createMuleMessage(inputStream);
-        message.setOutboundProperty(SftpConnector.PROPERTY_ORIGINAL_FILENAME, path);
+        // Files found in subfolders come with their path relative to the endpoint
+        int idx = path.lastIndexOf('/');
+        String name = path.substring(idx + 1);
+        message.setOutboundProperty(SftpConnector.PROPERTY_ORIGINAL_FILENAME, name);
+        message.setOutboundProperty(SftpConnector.PROPERTY_RELATIVE_PATH, idx < 0 ? "" : path.substring(0, idx));
 
         // Now we can update the notifier with the message
         notifier.setMessage(message);
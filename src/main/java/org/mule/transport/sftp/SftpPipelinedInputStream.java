@@ -0,0 +1,292 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <code>SftpPipelinedInputStream</code> reads a remote file with several read
+ * requests in flight at the same time. A plain <code>ChannelSftp.get()</code> only
+ * has one outstanding read request, which caps the throughput to roughly one buffer
+ * per round trip on high latency links.
+ * <p/>
+ * The file is split into chunks of <code>requestSize</code> bytes. Up to
+ * <code>windowSize</code> chunks are fetched concurrently, each one over its own
+ * sftp channel multiplexed on the already authenticated session of the
+ * <code>SftpClient</code>, and the chunks are handed out in file order. At most
+ * <code>maxBufferSize</code> bytes (but at least one chunk) are read ahead of the
+ * consumer, which also limits the number of requests in flight. The chunks are
+ * fetched by the shared transfer threads of {@link SftpThreads}.
+ * <p/>
+ * Each reader channel is a session on the server, which the server may limit
+ * (e.g. <code>MaxSessions</code> of OpenSSH). If some channels can't be opened, the
+ * file is read with the channels that could.
+ */
+public class SftpPipelinedInputStream extends InputStream
+{
+    private static final Log logger = LogFactory.getLog(SftpPipelinedInputStream.class);
+
+    private final String path;
+    private final long size;
+    private final int requestSize;
+    private final int maxChunksAhead;
+
+    private final BlockingQueue<ChannelSftp> channels = new LinkedBlockingQueue<ChannelSftp>();
+    private final List<ChannelSftp> openedChannels = new ArrayList<ChannelSftp>();
+    private final ExecutorService executor;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+    private long nextOffset = 0;
+    private byte[] current = null;
+    private int currentPos = 0;
+    private boolean eof = false;
+    private boolean closed = false;
+
+    /**
+     * @param client the client whose session is used to open the reader channels
+     * @param path the absolute path of the file to read
+     * @param size the size of the file
+     * @param windowSize the number of read requests to keep in flight
+     * @param requestSize the number of bytes to fetch per request
+     * @param maxBufferSize the maximum number of bytes to read ahead of the consumer
+     * @throws IOException if no reader channel could be opened
+     */
+    public SftpPipelinedInputStream(SftpClient client,
+                                    String path,
+                                    long size,
+                                    int windowSize,
+                                    int requestSize,
+                                    long maxBufferSize) throws IOException
+    {
+        this.path = path;
+        this.size = size;
+        this.requestSize = requestSize;
+        int chunksAhead = (int) Math.min(windowSize, Math.max(1, maxBufferSize / requestSize));
+        this.executor = SftpThreads.getTransferExecutor();
+
+        // Never open more channels than there are chunks to fetch at the same time
+        int channelCount = (int) Math.max(1, Math.min(chunksAhead, (size + requestSize - 1) / requestSize));
+        for (int i = 0; i < channelCount; i++)
+        {
+            try
+            {
+                ChannelSftp channel = client.openSftpChannel();
+                openedChannels.add(channel);
+                channels.add(channel);
+            }
+            catch (IOException e)
+            {
+                // Most likely the server doesn't allow more sessions, make do with
+                // the channels that are open
+                if (openedChannels.isEmpty())
+                {
+                    throw e;
+                }
+                logger.warn("Only " + openedChannels.size() + " of " + channelCount
+                            + " reader channels could be opened for " + path + ": " + e.getMessage());
+                break;
+            }
+        }
+        maxChunksAhead = Math.min(chunksAhead, openedChannels.size());
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Reading " + path + " (" + size + " bytes) with " + openedChannels.size()
+                         + " requests of " + requestSize + " bytes in flight");
+        }
+        fillWindow();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!ensureCurrent())
+        {
+            return -1;
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (!ensureCurrent())
+        {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return current == null ? 0 : current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        for (Future<byte[]> future : pending)
+        {
+            future.cancel(true);
+        }
+        pending.clear();
+        disconnectChannels();
+    }
+
+    /**
+     * Makes sure that there is an unread chunk in <code>current</code>.
+     *
+     * @return false if the end of the file has been reached
+     */
+    private boolean ensureCurrent() throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed: " + path);
+        }
+        while (current == null || currentPos >= current.length)
+        {
+            if (eof || pending.isEmpty())
+            {
+                return false;
+            }
+            current = await(pending.removeFirst());
+            currentPos = 0;
+            if (current.length < requestSize && nextOffset < size)
+            {
+                // The file was shorter than expected, no need to wait for the rest
+                eof = true;
+            }
+            fillWindow();
+        }
+        return true;
+    }
+
+    private void fillWindow()
+    {
+        while (!eof && nextOffset < size && pending.size() < maxChunksAhead)
+        {
+            final long offset = nextOffset;
+            final int length = (int) Math.min(requestSize, size - offset);
+            nextOffset += length;
+            pending.add(executor.submit(new Callable<byte[]>()
+            {
+                public byte[] call() throws Exception
+                {
+                    return fetch(offset, length);
+                }
+            }));
+        }
+    }
+
+    private byte[] await(Future<byte[]> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + path);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            IOException ioe = new IOException("Error reading " + path + ": " + cause.getMessage());
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    private byte[] fetch(long offset, int length) throws IOException, InterruptedException
+    {
+        ChannelSftp channel = channels.take();
+        try
+        {
+            InputStream in = channel.get(path, null, offset);
+            try
+            {
+                byte[] chunk = new byte[length];
+                int total = 0;
+                while (total < length)
+                {
+                    int n = in.read(chunk, total, length - total);
+                    if (n < 0)
+                    {
+                        break;
+                    }
+                    total += n;
+                }
+                if (total < length)
+                {
+                    byte[] shorter = new byte[total];
+                    System.arraycopy(chunk, 0, shorter, 0, total);
+                    return shorter;
+                }
+                return chunk;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (SftpException e)
+        {
+            throw new IOException(e.getMessage() + ".  Filename is " + path + ", offset " + offset);
+        }
+        finally
+        {
+            channels.add(channel);
+        }
+    }
+
+    private void disconnectChannels()
+    {
+        for (ChannelSftp channel : openedChannels)
+        {
+            channel.disconnect();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <code>SftpPipelinedUpload</code> copies a source stream to a remote sftp output
+ * stream with up to <code>windowSize</code> buffers of <code>requestSize</code>
+ * bytes in flight. A reader thread fills the buffers from the source while the
+ * calling thread writes them to the remote stream, so a slow source (e.g. a stream
+ * from another remote server) no longer stalls the write requests and vice versa.
+ * <p/>
+ * The jsch output stream sends each write request without waiting for its
+ * acknowledgement and checks the acknowledgements as they arrive, so the remote
+ * side reports an error status on the first write after it was received. The first
+ * error on either side aborts the whole transfer. The reader runs on the shared
+ * transfer threads of {@link SftpThreads}, and the transfer does not return before
+ * the reader has stopped using the source stream. A reader that is stuck in a read
+ * of the source which ignores the interrupt is waited for only a few seconds, then
+ * the source is closed to end the read.
+ */
+public class SftpPipelinedUpload
+{
+    private static final Log logger = LogFactory.getLog(SftpPipelinedUpload.class);
+
+    /**
+     * Marks the end of the source stream in the queue of filled buffers
+     */
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    /**
+     * States of the reader
+     */
+    private static final int READER_NEW = 0;
+    private static final int READER_RUNNING = 1;
+    private static final int READER_SKIPPED = 2;
+
+    /**
+     * ms an aborted transfer waits for the reader before it closes the source
+     */
+    private static final long READER_STOP_TIMEOUT = 5000;
+
+    private final int windowSize;
+    private final int requestSize;
+
+    public SftpPipelinedUpload(int windowSize, int requestSize)
+    {
+        this.windowSize = windowSize;
+        this.requestSize = requestSize;
+    }
+
+    /**
+     * Copies the source to the target. Neither of the streams is closed, unless the
+     * reader of an aborted transfer can't be stopped otherwise.
+     *
+     * @param source the stream to read from
+     * @param target the stream to write to
+     * @return the number of bytes copied
+     * @throws IOException If reading from the source or writing to the target fails
+     */
+    public long transfer(final InputStream source, OutputStream target) throws IOException
+    {
+        final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(windowSize);
+        // Room for all buffers plus the end marker, so the reader never blocks on
+        // putting the end marker
+        final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(windowSize + 1);
+        for (int i = 0; i < windowSize; i++)
+        {
+            free.add(new byte[requestSize]);
+        }
+
+        final AtomicReference<Throwable> readError = new AtomicReference<Throwable>();
+        final AtomicInteger readerState = new AtomicInteger(READER_NEW);
+        final CountDownLatch readerDone = new CountDownLatch(1);
+        Future<?> reader = SftpThreads.getTransferExecutor().submit(new Runnable()
+        {
+            public void run()
+            {
+                if (!readerState.compareAndSet(READER_NEW, READER_RUNNING))
+                {
+                    // The transfer was aborted before the reader started
+                    return;
+                }
+                try
+                {
+                    while (true)
+                    {
+                        byte[] buffer = free.take();
+                        int len = readFully(source, buffer);
+                        if (len > 0)
+                        {
+                            filled.put(new Chunk(buffer, len));
+                        }
+                        if (len < buffer.length)
+                        {
+                            break;
+                        }
+                    }
+                    filled.offer(END);
+                }
+                catch (InterruptedException e)
+                {
+                    // The writer has given up, no one is waiting for the end marker
+                }
+                catch (Throwable t)
+                {
+                    readError.set(t);
+                    filled.offer(END);
+                }
+                finally
+                {
+                    readerDone.countDown();
+                }
+            }
+        });
+
+        long total = 0;
+        boolean done = false;
+        try
+        {
+            while (true)
+            {
+                Chunk chunk = filled.take();
+                if (chunk == END || readError.get() != null)
+                {
+                    break;
+                }
+                target.write(chunk.buffer, 0, chunk.length);
+                total += chunk.length;
+                free.put(chunk.buffer);
+            }
+            done = true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted after writing " + total + " bytes");
+        }
+        finally
+        {
+            // The reader never touches the source if it has not started yet,
+            // otherwise the caller closes the source once it has stopped
+            if (!readerState.compareAndSet(READER_NEW, READER_SKIPPED))
+            {
+                if (!done)
+                {
+                    // Fail fast, stop reading from the source
+                    reader.cancel(true);
+                }
+                awaitReader(readerDone, source);
+            }
+            else
+            {
+                reader.cancel(false);
+            }
+        }
+
+        Throwable t = readError.get();
+        if (t != null)
+        {
+            IOException e = new IOException("Error reading the source stream after " + total + " bytes: "
+                                            + t.getMessage());
+            e.initCause(t);
+            throw e;
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Wrote " + total + " bytes with up to " + windowSize + " buffers of " + requestSize
+                         + " bytes in flight");
+        }
+        return total;
+    }
+
+    /**
+     * Waits for the reader to stop, it notices the cancellation after the read from
+     * the source that is in progress. The wait is bounded, also for an interrupted
+     * caller; if the reader is still reading then, the source is closed to end the
+     * read.
+     */
+    private static void awaitReader(CountDownLatch readerDone, InputStream source)
+    {
+        boolean interrupted = Thread.interrupted();
+        long end = System.currentTimeMillis() + READER_STOP_TIMEOUT;
+        boolean stopped = false;
+        long left;
+        while (!stopped && (left = end - System.currentTimeMillis()) > 0)
+        {
+            try
+            {
+                stopped = readerDone.await(left, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (!stopped)
+        {
+            logger.warn("The source stream was still being read " + READER_STOP_TIMEOUT
+                        + " ms after the upload was aborted, closing it");
+            IOUtils.closeQuietly(source);
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of bytes read, less than the length of the buffer only if
+     *         the end of the stream was reached
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException, InterruptedException
+    {
+        int total = 0;
+        while (total < buffer.length)
+        {
+            if (Thread.interrupted())
+            {
+                throw new InterruptedException();
+            }
+            int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0)
+            {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static class Chunk
+    {
+        final byte[] buffer;
+        final int length;
+
+        Chunk(byte[] buffer, int length)
+        {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
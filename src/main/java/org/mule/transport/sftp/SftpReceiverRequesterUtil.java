@@ -3,6 +3,7 @@ package org.mule.transport.sftp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.EndpointURI;
 import org.mule.api.endpoint.ImmutableEndpoint;
 import org.mule.transport.sftp.notification.SftpNotifier;
 import org.mule.util.FileUtils;
@@ -12,7 +13,11 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Contains reusable methods not directly related to usage of the jsch sftp library
@@ -29,12 +34,75 @@ public class SftpReceiverRequesterUtil
     private final FilenameFilter filenameFilter;
     private final SftpUtil sftpUtil;
 
+    /**
+     * Lists the subfolders too if includeSubfolders is set, null otherwise
+     */
+    private final SftpDirectoryWalker walker;
+
+    /**
+     * Set if the endpoint uses adaptive compression
+     */
+    private final SftpCompressionAdvisor compressionAdvisor;
+
+    /**
+     * Remembers the sizes of the listed files from one call of getAvailableFiles()
+     * to the next
+     */
+    private final SftpFileSizeTracker sizeTracker;
+
+    /**
+     * The files routed before, with their sizes and modification times, if
+     * deltaPolling is used
+     */
+    private SftpListingSnapshot snapshot;
+    private File snapshotFile;
+
+    /**
+     * The files returned by getAvailableFiles() that are not routed yet, they are
+     * added to the snapshot once they are
+     */
+    private final Map<String, SftpFileEntry> unroutedEntries = new ConcurrentHashMap<String, SftpFileEntry>();
+
+    /**
+     * The number of files the last call of getAvailableFiles() left alone because
+     * they might still be growing
+     */
+    private volatile int deferredFileCount = 0;
+
     public SftpReceiverRequesterUtil(ImmutableEndpoint endpoint)
     {
         this.endpoint = endpoint;
         this.connector = (SftpConnector) endpoint.getConnector();
 
         sftpUtil = new SftpUtil(endpoint);
+        sizeTracker = new SftpFileSizeTracker(sftpUtil.getSizeCheckWaitTime());
+
+        compressionAdvisor = sftpUtil.isAdaptiveCompression() ? connector.getCompressionAdvisor(endpoint) : null;
+
+        if (sftpUtil.isIncludeSubfolders())
+        {
+            // Files in the temp dir are being retrieved already
+            Set<String> excludedFolders = new HashSet<String>();
+            String tempDir = sftpUtil.getTempDirInbound();
+            if (tempDir != null)
+            {
+                if (tempDir.startsWith("./"))
+                {
+                    tempDir = tempDir.substring(2);
+                }
+                while (tempDir.endsWith("/"))
+                {
+                    tempDir = tempDir.substring(0, tempDir.length() - 1);
+                }
+                excludedFolders.add(tempDir);
+            }
+            walker = new SftpDirectoryWalker(endpoint, sftpUtil.getSubfolderParallelism(),
+                sftpUtil.getMaxSubfolderDepth(), sftpUtil.getSubfolderPattern(), excludedFolders);
+        }
+        else
+        {
+            walker = null;
+        }
 
         if (endpoint.getFilter() instanceof FilenameFilter)
         {
@@ -47,6 +115,75 @@ public class SftpReceiverRequesterUtil
 
     }
 
+    /**
+     * Makes getAvailableFiles() skip the files that were routed before and have not
+     * changed since, if deltaPolling is configured. Files count as routed once
+     * {@link #fileRouted(String)} is called for them.
+     */
+    public void initDeltaPolling()
+    {
+        if (!sftpUtil.isDeltaPolling())
+        {
+            return;
+        }
+
+        EndpointURI uri = endpoint.getEndpointURI();
+        String name = connector.getName() + "-" + uri.getUser() + "@" + uri.getHost() + "-" + uri.getPort()
+                      + uri.getPath();
+        snapshotFile = FileUtils.newFile(sftpUtil.getSnapshotDir(), name.replaceAll("[^A-Za-z0-9._@-]", "_")
+                                                                    + ".snapshot");
+        snapshot = new SftpListingSnapshot();
+        try
+        {
+            snapshot.load(snapshotFile);
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Loaded " + snapshot.size() + " routed files of " + uri + " from " + snapshotFile);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not load the listing snapshot " + snapshotFile + ", all files of " + uri
+                        + " are routed again: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the file to the snapshot of routed files if deltaPolling is used
+     *
+     * @param fileName a file returned by getAvailableFiles()
+     */
+    public void fileRouted(String fileName)
+    {
+        if (snapshot != null)
+        {
+            SftpFileEntry entry = unroutedEntries.remove(fileName);
+            if (entry != null)
+            {
+                snapshot.put(entry);
+            }
+        }
+    }
+
+    /**
+     * Saves the snapshot of routed files if it changed
+     */
+    public void saveSnapshot()
+    {
+        if (snapshot != null && snapshot.isDirty())
+        {
+            try
+            {
+                snapshot.save(snapshotFile);
+            }
+            catch (IOException e)
+            {
+                // The files routed since the last save are routed again after a restart
+                logger.error("Could not save the listing snapshot " + snapshotFile, e);
+            }
+        }
+    }
+
     // Get files in directory configured on the endpoint
     public String[] getAvailableFiles(boolean onlyGetTheFirstOne) throws Exception
     {
@@ -80,14 +217,56 @@ public class SftpReceiverRequesterUtil
             // Get size check parameter
             long sizeCheckDelayMs = sftpUtil.getSizeCheckWaitTime();
 
-            String[] files = client.listFiles();
+            // A single ls round trip gives us both the names and the attributes
+            // needed by the fileAge and size checks below. Files in subfolders are
+            // named by their relative path.
+            SftpFileEntry[] entries;
+            if (walker != null)
+            {
+                List<SftpFileEntry> walked = walker.walk(client);
+                entries = walked.toArray(new SftpFileEntry[walked.size()]);
+            }
+            else
+            {
+                entries = client.listFileEntries();
+            }
+
+            if (snapshot != null)
+            {
+                // Persist what the previous poll routed
+                saveSnapshot();
+                if (!onlyGetTheFirstOne)
+                {
+                    snapshot.retain(entries);
+                    Set<String> names = new HashSet<String>(entries.length);
+                    for (SftpFileEntry entry : entries)
+                    {
+                        names.add(entry.getName());
+                    }
+                    unroutedEntries.keySet().retainAll(names);
+                }
+            }
+            long now = System.currentTimeMillis();
+
+            if (sizeCheckDelayMs > 0)
+            {
+                Set<String> names = new HashSet<String>(entries.length);
+                for (SftpFileEntry entry : entries)
+                {
+                    names.add(entry.getName());
+                }
+                sizeTracker.retainAll(names);
+            }
 
             // Only return files that have completely been written and match
             // fileExtension
-            List<String> completedFiles = new ArrayList<String>(files.length);
+            List<String> completedFiles = new ArrayList<String>(entries.length);
+            int deferred = 0;
 
-            for (String file : files)
+            for (SftpFileEntry entry : entries)
             {
+                String file = entry.getName();
+
                 // Skip if no match.
                 // Note, Mule also uses this filter. We use the filter here because
                 // we don't want to
@@ -95,16 +274,25 @@ public class SftpReceiverRequesterUtil
                 // that Mule
                 // later should have ignored. Thus this is an "early" filter so that
                 // improves performance.
-                if (filenameFilter != null && !filenameFilter.accept(null, file))
+                if (filenameFilter != null && !filenameFilter.accept(null, file.substring(file.lastIndexOf('/') + 1)))
                 {
                     continue;
                 }
 
+                if (snapshot != null)
+                {
+                    if (snapshot.isUnchanged(entry))
+                    {
+                        continue;
+                    }
+                    unroutedEntries.put(file, entry);
+                }
+
                 if (checkFileAge || sizeCheckDelayMs >= 0)
                 {
                     // See if the file is still growing (either by age or size),
                     // leave it alone if it is
-                    if (!hasChanged(file, client, fileAge, sizeCheckDelayMs))
+                    if (!hasChanged(entry, now, fileAge, sizeCheckDelayMs))
                     {
                         // logger.debug("marking file [" + files[i] +
                         // "] as in transit.");
@@ -116,6 +304,10 @@ public class SftpReceiverRequesterUtil
                             break;
                         }
                     }
+                    else
+                    {
+                        deferred++;
+                    }
                 }
                 else
                 {
@@ -126,6 +318,7 @@ public class SftpReceiverRequesterUtil
                     }
                 }
             }
+            deferredFileCount = deferred;
             return completedFiles.toArray(new String[completedFiles.size()]);
         }
         finally
@@ -137,61 +330,140 @@ public class SftpReceiverRequesterUtil
         }
     }
 
+    /**
+     * @return the number of files the last call of getAvailableFiles() did not
+     *         return because their size check is not completed yet
+     */
+    public int getDeferredFileCount()
+    {
+        return deferredFileCount;
+    }
+
+    /**
+     * @return the time a file must keep its size before it is returned by
+     *         getAvailableFiles(), 0 or negative if the size is not checked
+     */
+    public long getSizeCheckWaitTime()
+    {
+        return sftpUtil.getSizeCheckWaitTime();
+    }
+
     public InputStream retrieveFile(String fileName, SftpNotifier notifier) throws Exception
+    {
+        return retrieveFile(fileName, notifier, null);
+    }
+
+    /**
+     * @param claim the claim of the file, released when the returned stream is
+     *            closed. May be null.
+     */
+    public InputStream retrieveFile(String fileName, SftpNotifier notifier, SftpClaimRegistry.Claim claim)
+        throws Exception
     {
         // Getting a new SFTP client dedicated to the SftpInputStream below
         SftpClient client = connector.createSftpClient(endpoint, notifier);
 
-        // Check usage of tmpSendingDir
-        String tmpSendingDir = sftpUtil.getTempDirInbound();
-        if (tmpSendingDir != null)
+        // The client is owned by the returned stream, until then it is released on
+        // failure
+        long size;
+        InputStream fileInputStream = null;
+        String fileNamePart = getFlatName(fileName);
+        boolean ok = false;
+        try
         {
-            // Check usage of unique names of files during transfer
-            boolean addUniqueSuffix = sftpUtil.isUseTempFileTimestampSuffix();
+            // Check usage of tmpSendingDir
+            String tmpSendingDir = sftpUtil.getTempDirInbound();
+            if (tmpSendingDir != null)
+            {
+                // Check usage of unique names of files during transfer
+                boolean addUniqueSuffix = sftpUtil.isUseTempFileTimestampSuffix();
 
-            // TODO: is it possibly to move this to some kind of init method?
-            client.createSftpDirIfNotExists(endpoint, tmpSendingDir);
-            String tmpSendingFileName = tmpSendingDir + "/" + fileName;
+                // TODO: is it possibly to move this to some kind of init method?
+                client.createSftpDirIfNotExists(endpoint, tmpSendingDir);
+                String tmpSendingFileName = tmpSendingDir + "/" + fileNamePart;
 
-            if (addUniqueSuffix)
-            {
-                tmpSendingFileName = sftpUtil.createUniqueSuffix(tmpSendingFileName);
+                if (addUniqueSuffix)
+                {
+                    tmpSendingFileName = sftpUtil.createUniqueSuffix(tmpSendingFileName);
+                    fileNamePart = tmpSendingFileName.substring(tmpSendingDir.length() + 1);
+                }
+                String fullTmpSendingPath = endpoint.getEndpointURI().getPath() + "/" + tmpSendingFileName;
+
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Move " + fileName + " to " + fullTmpSendingPath);
+                }
+                try
+                {
+                    client.rename(fileName, fullTmpSendingPath);
+                }
+                catch (IOException e)
+                {
+                    // The temp dir may have been removed, check it again next time
+                    sftpUtil.invalidateDirectoryCache();
+                    throw e;
+                }
+                fileName = tmpSendingFileName;
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Move done");
+                }
             }
-            String fullTmpSendingPath = endpoint.getEndpointURI().getPath() + "/" + tmpSendingFileName;
 
-            if (logger.isDebugEnabled())
+            // Retrieve the file stream, large files are downloaded in segments over
+            // several connections first if configured
+            size = client.getSize(fileName);
+            if (compressionAdvisor != null && size >= SftpCompressionAdvisor.MIN_ADAPTIVE_SIZE)
             {
-                logger.debug("Move " + fileName + " to " + fullTmpSendingPath);
+                client.setCompression(compressionAdvisor.isCompressionWorthwhile(fileName));
             }
-            client.rename(fileName, fullTmpSendingPath);
-            fileName = tmpSendingFileName;
-            if (logger.isDebugEnabled())
+            if (sftpUtil.isUseSegmentedDownload())
+            {
+                if (size >= sftpUtil.getSegmentedDownloadThreshold())
+                {
+                    String spoolDir = sftpUtil.getSegmentedDownloadSpoolDir();
+                    SftpSegmentedDownload download = new SftpSegmentedDownload(endpoint,
+                        sftpUtil.getSegmentedDownloadParallelism(),
+                        spoolDir == null ? null : FileUtils.newFile(spoolDir));
+                    fileInputStream = download.retrieveFile(client, fileName, size);
+                }
+            }
+            if (fileInputStream == null)
+            {
+                fileInputStream = client.retrieveFile(fileName, size, sftpUtil.getReadPipelineWindowSize(),
+                    sftpUtil.getReadPipelineRequestSize(), sftpUtil.getReadPipelineMaxBufferSize());
+            }
+            ok = true;
+        }
+        finally
+        {
+            if (!ok)
             {
-                logger.debug("Move done");
+                connector.releaseClient(endpoint, client);
             }
         }
 
         // Archive functionality...
         String archive = sftpUtil.getArchiveDir();
 
-        // Retrieve the file stream
-        InputStream fileInputStream = client.retrieveFile(fileName);
-
         if (!"".equals(archive))
         {
             String archiveTmpReceivingDir = sftpUtil.getArchiveTempReceivingDir();
             String archiveTmpSendingDir = sftpUtil.getArchiveTempSendingDir();
 
-            InputStream is = new SftpInputStream(client, fileInputStream, fileName, connector.isAutoDelete(),
-                endpoint);
-
-            // TODO ML FIX. Refactor to util-class...
-            int idx = fileName.lastIndexOf('/');
-            String fileNamePart = fileName.substring(idx + 1);
+            SftpInputStream is = new SftpInputStream(client, fileInputStream, fileName,
+                connector.isAutoDelete(), endpoint, sftpUtil.getStreamBufferSize());
+            is.setClaim(claim);
+            is.setFileSize(size);
 
             // don't use new File() directly, see MULE-1112
             File archiveFile = FileUtils.newFile(archive, fileNamePart);
 
+            if (sftpUtil.isStreamingArchive())
+            {
+                return streamingArchiveFile(archive, archiveTmpReceivingDir, is, fileNamePart, archiveFile);
+            }
+
             // Should temp dirs be used when handling the archive file?
             if ("".equals(archiveTmpReceivingDir) || "".equals(archiveTmpSendingDir))
             {
@@ -207,7 +479,26 @@ public class SftpReceiverRequesterUtil
         // This special InputStream closes the SftpClient when the stream is closed.
         // The stream will be materialized in a Message Dispatcher or Service
         // Component
-        return new SftpInputStream(client, fileInputStream, fileName, connector.isAutoDelete(), endpoint);
+        SftpInputStream is = new SftpInputStream(client, fileInputStream, fileName, connector.isAutoDelete(),
+            endpoint, sftpUtil.getStreamBufferSize());
+        is.setClaim(claim);
+        is.setFileSize(size);
+        return is;
+    }
+
+    /**
+     * @return the name of the file in the temp dir and the archive. If subfolders
+     *         are polled the folders stay part of the name, with '/' written as
+     *         "%2F" and '%' as "%25", so that files of the same name in different
+     *         subfolders don't overwrite each other there.
+     */
+    private String getFlatName(String fileName)
+    {
+        if (sftpUtil.isIncludeSubfolders())
+        {
+            return fileName.replace("%", "%25").replace("/", "%2F");
+        }
+        return fileName.substring(fileName.lastIndexOf('/') + 1);
     }
 
     private InputStream archiveFileUsingTempDirs(String archive,
@@ -258,7 +549,7 @@ public class SftpReceiverRequesterUtil
             logger.info("Move archiveTmpReceivingFile (" + archiveTmpReceivingFile
                         + ") to archiveTmpSendingFile (" + archiveTmpSendingFile + ")...");
         }
-        FileUtils.moveFile(archiveTmpReceivingFile, archiveTmpSendingFile);
+        SftpUtil.moveFile(archiveTmpReceivingFile, archiveTmpSendingFile);
 
         if (logger.isDebugEnabled())
         {
@@ -268,6 +559,53 @@ public class SftpReceiverRequesterUtil
         return new SftpFileArchiveInputStream(archiveTmpSendingFile, archiveFile);
     }
 
+    /**
+     * Returns a stream that writes the archive file while the payload is consumed.
+     * The copy is written to the temp receiving dir if one is configured, otherwise
+     * to a partial file in the archive folder.
+     */
+    private InputStream streamingArchiveFile(String archive,
+                                             String archiveTmpReceivingDir,
+                                             SftpInputStream is,
+                                             String fileNamePart,
+                                             File archiveFile) throws IOException
+    {
+        File archiveFolder = FileUtils.newFile(archiveFile.getParentFile().getPath());
+        File partFolder = "".equals(archiveTmpReceivingDir)
+                        ? archiveFolder : FileUtils.newFile(archive + '/' + archiveTmpReceivingDir);
+        if (!partFolder.exists())
+        {
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Creates " + partFolder.getAbsolutePath());
+            }
+            if (!partFolder.mkdirs() && !partFolder.exists())
+                throw new IOException("Failed to create archive-folder: " + partFolder);
+        }
+        if (!archiveFolder.exists() && !archiveFolder.mkdirs() && !archiveFolder.exists())
+        {
+            throw new IOException("Failed to create archive-folder: " + archiveFolder);
+        }
+
+        try
+        {
+            File partFile = File.createTempFile("sftp-", "-" + fileNamePart + ".part", partFolder);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Return SftpTeeArchiveInputStream writing " + partFile + " for archiveFile "
+                             + archiveFile);
+            }
+            return new SftpTeeArchiveInputStream(is, partFile, archiveFile);
+        }
+        catch (IOException e)
+        {
+            // Leave the remote file in place and give the client back
+            is.setErrorOccurred();
+            is.close();
+            throw e;
+        }
+    }
+
     private InputStream archiveFile(InputStream is, File archiveFile) throws IOException
     {
         File archiveFolder = FileUtils.newFile(archiveFile.getParentFile().getPath());
@@ -299,27 +637,26 @@ public class SftpReceiverRequesterUtil
      * <p/>
      * Note! This assumes that the time on both servers are synchronized!
      * 
-     * @param fileName The file to check
-     * @param client instance of StftClient
+     * @param entry The listed file to check
+     * @param now The time of the listing
      * @param fileAge How old the file should be to be considered "old" and not
      *            changed
      * @param sizeCheckDelayMs Wait time (in ms) between size-checks to determine if
      *            a file is ready to be processed.
      * @return true if the file has changed
-     * @throws Exception Error
      */
-    private boolean hasChanged(String fileName, SftpClient client, long fileAge, long sizeCheckDelayMs)
-        throws Exception
+    private boolean hasChanged(SftpFileEntry entry, long now, long fileAge, long sizeCheckDelayMs)
     {
+        String fileName = entry.getName();
+
         // Perform fileAge test if configured
         // Note that for this to work it is required that the system clock on the
         // mule server
         // is synchronized with the system clock on the sftp server
         if (fileAge > 0)
         {
-            long lastModifiedTime = client.getLastModifiedTime(fileName);
+            long lastModifiedTime = entry.getLastModifiedTime();
             // TODO Can we get the current time from the other server?
-            long now = System.currentTimeMillis();
             long diff = now - lastModifiedTime;
             // If the diff is negative it's a sign that the time on the test server
             // and the ftps-server is not synchronized
@@ -338,24 +675,24 @@ public class SftpReceiverRequesterUtil
             }
         }
 
-        // Perform a size check with a short configurable latencey between the
-        // size-calls
-        // Take consecutive file size snapshots to determine if file is still being
-        // written
+        // Compare the size and modification time with the ones of the previous
+        // listings to determine if file is still being written, a file must keep
+        // them for at least sizeCheckDelayMs
         if (sizeCheckDelayMs > 0)
         {
-            logger.info("Perform size check with a delay of: " + sizeCheckDelayMs + " ms.");
-            long fileSize1 = client.getSize(fileName);
-            Thread.sleep(sizeCheckDelayMs);
-            long fileSize2 = client.getSize(fileName);
-
-            if (fileSize1 == fileSize2)
+            if (sizeTracker.isStable(entry, now))
             {
-                logger.info("File is stable (not growing), ready for retrieval: " + fileName);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("File is stable (not growing), ready for retrieval: " + fileName);
+                }
             }
             else
             {
-                logger.info("File is growing, deferring retrieval: " + fileName);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("File may still be growing, deferring retrieval: " + fileName);
+                }
                 return true;
             }
         }
@@ -0,0 +1,378 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import com.jcraft.jsch.SftpException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.ImmutableEndpoint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.Queue;
+
+/**
+ * <code>SftpSegmentedDownload</code> downloads a large remote file as byte ranges
+ * that are fetched concurrently over several sftp connections from the connection
+ * pool of the endpoint. The segments are written straight into their position of a
+ * local spool file, which is returned as the payload stream and deleted when the
+ * stream is closed.
+ * <p/>
+ * The client that is passed in fetches segments as well. The additional clients
+ * are borrowed on the shared transfer threads of {@link SftpThreads} while the
+ * download is already running, and only if the pool has an idle connection or
+ * room for a new one, so a segmented download doesn't wait for a connection held
+ * by another request. A client that has nothing left to fetch is released right
+ * away, a client whose segment failed is destroyed.
+ */
+public class SftpSegmentedDownload
+{
+    private static final Log logger = LogFactory.getLog(SftpSegmentedDownload.class);
+
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int SEGMENTS_PER_CONNECTION = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SftpConnector connector;
+    private final ImmutableEndpoint endpoint;
+    private final int parallelism;
+    private final File spoolDir;
+
+    /**
+     * @param endpoint the endpoint whose connection pool is used
+     * @param parallelism the maximum number of connections to use
+     * @param spoolDir the directory for the spool files, null for the default
+     *            temporary directory
+     */
+    public SftpSegmentedDownload(ImmutableEndpoint endpoint, int parallelism, File spoolDir)
+    {
+        this.endpoint = endpoint;
+        this.connector = (SftpConnector) endpoint.getConnector();
+        this.parallelism = Math.max(1, parallelism);
+        this.spoolDir = spoolDir;
+    }
+
+    /**
+     * Downloads the file to a spool file.
+     *
+     * @param client a client with the endpoint directory as working directory
+     * @param fileName the file to download, relative to the working directory
+     * @param size the size of the file
+     * @return a stream over the spool file, which deletes the file when closed
+     * @throws IOException If any of the segments could not be downloaded
+     */
+    public InputStream retrieveFile(SftpClient client, String fileName, long size) throws IOException
+    {
+        String path;
+        try
+        {
+            path = fileName.startsWith("/") ? fileName : client.getChannelSftp().pwd() + "/" + fileName;
+        }
+        catch (SftpException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+
+        client.notifyRetrieve(fileName, size);
+
+        File spool = File.createTempFile("sftp-", ".spool", spoolDir);
+        boolean ok = false;
+        try
+        {
+            long start = System.currentTimeMillis();
+            download(client, path, size, spool);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Downloaded " + path + " (" + size + " bytes) to " + spool + " in "
+                             + (System.currentTimeMillis() - start) + " ms");
+            }
+            InputStream in = new SpoolFileInputStream(spool);
+            ok = true;
+            return in;
+        }
+        finally
+        {
+            if (!ok && !spool.delete())
+            {
+                logger.warn("Could not delete the spool file " + spool);
+            }
+        }
+    }
+
+    private void download(SftpClient client, final String path, long size, File spool) throws IOException
+    {
+        final Segments segments = new Segments();
+        long segmentSize = Math.max(MIN_SEGMENT_SIZE, (size + parallelism * SEGMENTS_PER_CONNECTION - 1)
+                                                      / (parallelism * SEGMENTS_PER_CONNECTION));
+        for (long offset = 0; offset < size; offset += segmentSize)
+        {
+            segments.add(offset, Math.min(segmentSize, size - offset));
+        }
+        int extraClients = Math.min(parallelism - 1, segments.size() - 1);
+
+        RandomAccessFile file = new RandomAccessFile(spool, "rw");
+        try
+        {
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+
+            for (int i = 0; i < extraClients; i++)
+            {
+                SftpThreads.getTransferExecutor().execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        fetchWithPooledClient(path, segments, channel);
+                    }
+                });
+            }
+
+            // The calling thread works on the segments as well, then waits for the
+            // segments fetched by the other clients
+            fetchSegments(client, path, segments, channel);
+            segments.awaitCompletion();
+
+            Throwable t = segments.getError();
+            if (t != null)
+            {
+                if (t instanceof IOException)
+                {
+                    throw (IOException) t;
+                }
+                IOException e = new IOException("Segmented download of " + path + " failed: " + t.getMessage());
+                e.initCause(t);
+                throw e;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            segments.fail(e);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + path);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    private void fetchWithPooledClient(String path, Segments segments, FileChannel channel)
+    {
+        if (!segments.hasNext())
+        {
+            return;
+        }
+
+        SftpClient client;
+        try
+        {
+            client = connector.createSftpClientIfAvailable(endpoint);
+        }
+        catch (Exception e)
+        {
+            // Not fatal, the remaining clients will pick up the segments
+            logger.warn("Could not get an additional connection for the segmented download of " + path + ": "
+                        + e.getMessage());
+            return;
+        }
+        if (client == null)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("No free connection for the segmented download of " + path);
+            }
+            return;
+        }
+
+        boolean ok = false;
+        try
+        {
+            ok = fetchSegments(client, path, segments, channel);
+        }
+        finally
+        {
+            try
+            {
+                if (!ok && connector.useConnectionPool())
+                {
+                    connector.destroyClient(endpoint, client);
+                }
+                else
+                {
+                    connector.releaseClient(endpoint, client);
+                }
+            }
+            catch (Exception e)
+            {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @return false if a segment failed with this client
+     */
+    private boolean fetchSegments(SftpClient client, String path, Segments segments, FileChannel channel)
+    {
+        long[] segment;
+        while ((segment = segments.next()) != null)
+        {
+            try
+            {
+                fetchSegment(client, path, segment[0], segment[1], channel);
+            }
+            catch (Throwable t)
+            {
+                segments.fail(t);
+                return false;
+            }
+            finally
+            {
+                segments.done();
+            }
+        }
+        return true;
+    }
+
+    private void fetchSegment(SftpClient client, String path, long offset, long length, FileChannel channel)
+        throws IOException, SftpException
+    {
+        InputStream in = client.getChannelSftp().get(path, null, offset);
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = offset;
+            long end = offset + length;
+            while (position < end)
+            {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (n < 0)
+                {
+                    throw new IOException("Unexpected end of file at offset " + position + " of " + path);
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+                while (bb.hasRemaining())
+                {
+                    position += channel.write(bb, position);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * The segments that are left, the number of segments being fetched and the
+     * first error
+     */
+    private static class Segments
+    {
+        private final Queue<long[]> queue = new LinkedList<long[]>();
+        private int inFlight = 0;
+        private Throwable error;
+
+        synchronized void add(long offset, long length)
+        {
+            queue.add(new long[]{offset, length});
+        }
+
+        synchronized int size()
+        {
+            return queue.size();
+        }
+
+        /**
+         * @return true if there are segments left to fetch and none failed
+         */
+        synchronized boolean hasNext()
+        {
+            return error == null && !queue.isEmpty();
+        }
+
+        /**
+         * @return the next segment to fetch, which must be followed by a call of
+         *         done(), null if there are none left or a segment failed
+         */
+        synchronized long[] next()
+        {
+            if (error != null || queue.isEmpty())
+            {
+                return null;
+            }
+            inFlight++;
+            return queue.poll();
+        }
+
+        synchronized void done()
+        {
+            inFlight--;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable t)
+        {
+            if (error == null)
+            {
+                error = t;
+            }
+        }
+
+        synchronized Throwable getError()
+        {
+            return error;
+        }
+
+        /**
+         * Waits until no segment is being fetched anymore
+         */
+        synchronized void awaitCompletion() throws InterruptedException
+        {
+            while (inFlight > 0)
+            {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Deletes the spool file when the stream is closed
+     */
+    private static class SpoolFileInputStream extends FileInputStream
+    {
+        private final File file;
+
+        SpoolFileInputStream(File file) throws FileNotFoundException
+        {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            super.close();
+            if (file.exists() && !file.delete())
+            {
+                logger.warn("Could not delete the spool file " + file);
+            }
+        }
+    }
+}
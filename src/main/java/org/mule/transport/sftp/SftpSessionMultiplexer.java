@@ -0,0 +1,260 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mule.api.endpoint.EndpointURI;
+import org.mule.api.endpoint.ImmutableEndpoint;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>SftpSessionMultiplexer</code> lets several <code>SftpClient</code>s share
+ * one authenticated ssh session. Every client gets its own sftp channel, but only
+ * one TCP connection, key exchange and authentication is needed per
+ * <code>maxChannelsPerSession</code> clients of the same user on the same host.
+ * <p/>
+ * New sessions for a host are created one at a time, so a burst of new clients
+ * does not turn into a burst of concurrent connection attempts (which servers with
+ * a low <code>MaxStartups</code> answer with "Connection reset"). A session is
+ * disconnected when the last client using it is disconnected.
+ */
+public class SftpSessionMultiplexer
+{
+    private static final Log logger = LogFactory.getLog(SftpSessionMultiplexer.class);
+
+    private final Map<String, SessionGroup> groups = new HashMap<String, SessionGroup>();
+
+    /**
+     * Creates a client with its own channel on a shared session.
+     *
+     * @param endpoint the endpoint to connect to
+     * @param maxChannelsPerSession the maximum number of clients per session
+     * @return a client that releases its share of the session when disconnected
+     * @throws Exception If a new session could not be created
+     */
+    public SftpClient createClient(ImmutableEndpoint endpoint, int maxChannelsPerSession) throws Exception
+    {
+        SessionGroup group = getGroup(getKey(endpoint));
+        SharedSession shared = leaseSession(group, endpoint, maxChannelsPerSession);
+
+        // Opening the channel is a round trip, don't hold the lock meanwhile
+        try
+        {
+            return shared.owner.createChannelClient(shared);
+        }
+        catch (IOException e)
+        {
+            shared.release();
+            throw e;
+        }
+    }
+
+    private SharedSession leaseSession(SessionGroup group, ImmutableEndpoint endpoint, int maxChannelsPerSession)
+        throws Exception
+    {
+        synchronized (group)
+        {
+            while (true)
+            {
+                SharedSession shared = group.leaseSession(maxChannelsPerSession);
+                if (shared != null)
+                {
+                    return shared;
+                }
+                if (!group.connecting)
+                {
+                    break;
+                }
+                // Only one session per host is created at a time, the new one may
+                // have room for this client as well
+                group.wait();
+            }
+            group.connecting = true;
+        }
+
+        // Connect without holding the lock, the clients of the existing sessions
+        // can be released meanwhile
+        SftpClient owner = null;
+        try
+        {
+            owner = connect(endpoint);
+        }
+        finally
+        {
+            if (owner == null)
+            {
+                group.connected();
+            }
+        }
+
+        SharedSession shared = new SharedSession(group, owner);
+        synchronized (group)
+        {
+            group.sessions.add(shared);
+            shared.leases++;
+            group.connected();
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Created shared session " + shared + ", sessions for " + group.key + ": "
+                             + group.sessions.size());
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Creates the client that owns a new session
+     */
+    protected SftpClient connect(ImmutableEndpoint endpoint) throws Exception
+    {
+        return SftpConnectionFactory.connect(endpoint);
+    }
+
+    /**
+     * Disconnects all sessions, the clients using them will fail on their next
+     * operation.
+     */
+    public void disconnectAll()
+    {
+        List<SessionGroup> all;
+        synchronized (groups)
+        {
+            all = new ArrayList<SessionGroup>(groups.values());
+            groups.clear();
+        }
+        for (SessionGroup group : all)
+        {
+            List<SharedSession> sessions;
+            synchronized (group)
+            {
+                sessions = new ArrayList<SharedSession>(group.sessions);
+                group.sessions.clear();
+            }
+            for (SharedSession shared : sessions)
+            {
+                shared.owner.disconnect();
+            }
+        }
+    }
+
+    private SessionGroup getGroup(String key)
+    {
+        synchronized (groups)
+        {
+            SessionGroup group = groups.get(key);
+            if (group == null)
+            {
+                group = new SessionGroup(key);
+                groups.put(key, group);
+            }
+            return group;
+        }
+    }
+
+    private String getKey(ImmutableEndpoint endpoint)
+    {
+        EndpointURI uri = endpoint.getEndpointURI();
+        SftpUtil sftpUtil = new SftpUtil(endpoint);
+        return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort() + "#" + sftpUtil.getIdentityFile() + "#"
+               + sftpUtil.getCompression() + "#" + sftpUtil.getCiphers() + "#" + sftpUtil.getMacs() + "#"
+               + sftpUtil.getKexAlgorithms();
+    }
+
+    private static class SessionGroup
+    {
+        final String key;
+        final List<SharedSession> sessions = new ArrayList<SharedSession>();
+        boolean connecting = false;
+
+        SessionGroup(String key)
+        {
+            this.key = key;
+        }
+
+        /**
+         * Called when the session being created is connected or failed to connect
+         */
+        synchronized void connected()
+        {
+            connecting = false;
+            notifyAll();
+        }
+
+        /**
+         * Must be called with the lock of the group held
+         */
+        SharedSession leaseSession(int maxChannelsPerSession)
+        {
+            for (SharedSession shared : sessions)
+            {
+                if (shared.leases < maxChannelsPerSession && shared.owner.isSessionConnected())
+                {
+                    shared.leases++;
+                    return shared;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A session and the number of clients that use it
+     */
+    static class SharedSession
+    {
+        private final SessionGroup group;
+        private final SftpClient owner;
+        private int leases = 0;
+
+        SharedSession(SessionGroup group, SftpClient owner)
+        {
+            this.group = group;
+            this.owner = owner;
+        }
+
+        /**
+         * Called when a client using the session is disconnected
+         */
+        void release()
+        {
+            boolean last;
+            synchronized (group)
+            {
+                leases--;
+                last = leases <= 0;
+                if (last)
+                {
+                    group.sessions.remove(this);
+                }
+            }
+            if (last)
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Disconnecting unused shared session " + this);
+                }
+                owner.disconnect();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return group.key + "/" + System.identityHashCode(this);
+        }
+    }
+}
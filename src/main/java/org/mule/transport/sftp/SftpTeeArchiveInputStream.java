@@ -0,0 +1,198 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <code>SftpTeeArchiveInputStream</code> writes the archive copy of a file while
+ * the payload stream is consumed. The bytes read are written to a partial file,
+ * which is moved to the archive when the stream is closed and deleted if an error
+ * occurred. Bytes that were not read when the stream is closed are read to complete
+ * the copy, before the remote file is deleted. A stream that is abandoned, e.g.
+ * because its message was rejected by a filter, is neither read to the end nor
+ * archived, but the remote file is closed the normal way, so it is deleted as it
+ * would be without the streaming archive.
+ */
+public class SftpTeeArchiveInputStream extends InputStream implements ErrorOccurredDecorator
+{
+    private static final Log logger = LogFactory.getLog(SftpTeeArchiveInputStream.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SftpInputStream in;
+    private final File partFile;
+    private final File archiveFile;
+    private final OutputStream out;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean errorOccured = false;
+
+    /**
+     * @param in the remote file
+     * @param partFile the file the copy is written to while the stream is consumed
+     * @param archiveFile the file the copy is moved to when the stream is closed
+     * @throws IOException If the partial file could not be created
+     */
+    public SftpTeeArchiveInputStream(SftpInputStream in, File partFile, File archiveFile) throws IOException
+    {
+        this.in = in;
+        this.partFile = partFile;
+        this.archiveFile = archiveFile;
+        this.out = new BufferedOutputStream(new FileOutputStream(partFile), BUFFER_SIZE);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = in.read();
+        if (b >= 0)
+        {
+            out.write(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException
+    {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int n = in.read(b, off, len);
+        if (n > 0)
+        {
+            out.write(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return in.available();
+    }
+
+    /**
+     * @return the size of the remote file, -1 if unknown
+     */
+    public long getFileSize()
+    {
+        return in.getFileSize();
+    }
+
+    public void close() throws IOException
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        boolean committed = false;
+        try
+        {
+            if (!errorOccured)
+            {
+                // Complete the copy with what the consumer did not read
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (read(buffer) != -1)
+                {
+                    // keep copying
+                }
+            }
+            out.close();
+
+            if (!errorOccured)
+            {
+                if (logger.isInfoEnabled())
+                {
+                    logger.info("Move " + partFile + " to archive " + archiveFile);
+                }
+                SftpUtil.moveFile(partFile, archiveFile);
+                committed = true;
+            }
+        }
+        catch (IOException e)
+        {
+            // Keep the remote file if the archive could not be written
+            setErrorOccurred();
+            throw e;
+        }
+        finally
+        {
+            try
+            {
+                if (!committed)
+                {
+                    discard();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the stream without completing the copy: the partial copy is deleted
+     * and the remote file is closed as usual, e.g. deleted if autoDelete is set.
+     */
+    public void abandon() throws IOException
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            discard();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public void setErrorOccurred()
+    {
+        if (logger.isDebugEnabled()) logger.debug("setErrorOccurred() called");
+        this.errorOccured = true;
+        in.setErrorOccurred();
+    }
+
+    private void discard()
+    {
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not close " + partFile, e);
+        }
+        if (partFile.exists() && !partFile.delete())
+        {
+            logger.warn("Could not delete the partial archive file " + partFile);
+        }
+    }
+}
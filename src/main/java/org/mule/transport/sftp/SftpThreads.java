@@ -0,0 +1,70 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>SftpThreads</code> creates the threads the transport needs besides the
+ * receiver and dispatcher threads of Mule.
+ * <p/>
+ * The background work of single transfers (pipelined reads and uploads, the
+ * segments of a segmented download) and of directory walks runs on one shared
+ * pool. Its threads are created on demand and end after a minute without work;
+ * the number of threads an operation uses at the same time is bounded by the
+ * operation itself, e.g. by its window size. Other threads, e.g. the timer of a
+ * batcher, are created by {@link #newThreadFactory(String)}. All threads are
+ * daemon threads, so they never keep the JVM alive.
+ */
+public final class SftpThreads
+{
+    private static final long IDLE_TIME = 60;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService transferExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+        IDLE_TIME, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), newThreadFactory("sftp-transfer"));
+
+    private SftpThreads()
+    {
+        // utility class
+    }
+
+    /**
+     * @return the pool that runs the background work of transfers and walks
+     */
+    public static ExecutorService getTransferExecutor()
+    {
+        return transferExecutor;
+    }
+
+    /**
+     * @param name the name of the threads, followed by a number
+     * @return a factory of daemon threads
+     */
+    public static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name + "." + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <code>SftpUniqueNames</code> keeps track of the remote file names picked by the
+ * <code>addSeqNo</code> duplicate handling of the dispatchers of a connector. A name
+ * is reserved from the moment it is found to be free until the file is written, so
+ * two dispatchers never pick the same name. It also remembers the last sequence
+ * number used for a name in a directory, so the next duplicate of that name is
+ * looked for from there instead of from 1.
+ */
+public class SftpUniqueNames
+{
+    /**
+     * The most names a sequence number is remembered for, the numbers are forgotten
+     * when there are more
+     */
+    private static final int MAX_SEQ_NOS = 10000;
+
+    private final ConcurrentHashMap<String, Boolean> reserved = new ConcurrentHashMap<String, Boolean>();
+    private final ConcurrentHashMap<String, Integer> seqNos = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @param host the host of the file
+     * @param path the absolute path of the file
+     * @return true if the name was reserved, false if it already is
+     */
+    public boolean reserve(String host, String path)
+    {
+        return reserved.putIfAbsent(getKey(host, path), Boolean.TRUE) == null;
+    }
+
+    public void release(String host, String path)
+    {
+        reserved.remove(getKey(host, path));
+    }
+
+    public boolean isReserved(String host, String path)
+    {
+        return reserved.containsKey(getKey(host, path));
+    }
+
+    /**
+     * @param host the host of the file
+     * @param path the absolute path of the file, without sequence number
+     * @return the sequence number to try first for a duplicate of the file
+     */
+    public int getNextSeqNo(String host, String path)
+    {
+        Integer seqNo = seqNos.get(getKey(host, path));
+        return seqNo == null ? 1 : seqNo.intValue() + 1;
+    }
+
+    /**
+     * Remembers the sequence number used for a duplicate of the file
+     */
+    public void setSeqNo(String host, String path, int seqNo)
+    {
+        if (seqNos.size() >= MAX_SEQ_NOS)
+        {
+            seqNos.clear();
+        }
+        seqNos.put(getKey(host, path), Integer.valueOf(seqNo));
+    }
+
+    private static String getKey(String host, String path)
+    {
+        return host + ":" + path;
+    }
+}
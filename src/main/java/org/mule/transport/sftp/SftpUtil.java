@@ -2,13 +2,15 @@
 package org.mule.transport.sftp;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.mule.api.endpoint.ImmutableEndpoint;
 
@@ -30,8 +32,26 @@ public class SftpUtil
     private static final boolean KEEP_FILE_ON_ERROR_DEFAULT = true;
     private static final boolean USE_TEMP_FILE_TIMESTAMP_SUFFIX_DEFAULT = false;
     private static final long SIZE_CHECK_WAIT_TIME_DEFAULT = -1;
-
-    private final static Object lock = new Object();
+    private static final int READ_PIPELINE_WINDOW_SIZE_DEFAULT = 1;
+    private static final int READ_PIPELINE_REQUEST_SIZE_DEFAULT = 1024 * 1024;
+    private static final long READ_PIPELINE_MAX_BUFFER_SIZE_DEFAULT = 16 * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE_DEFAULT = SftpInputStream.DEFAULT_BUFFER_SIZE;
+    private static final boolean STREAMING_ARCHIVE_DEFAULT = false;
+    private static final boolean INCLUDE_SUBFOLDERS_DEFAULT = false;
+    private static final int MAX_SUBFOLDER_DEPTH_DEFAULT = -1;
+    private static final int SUBFOLDER_PARALLELISM_DEFAULT = 4;
+    private static final boolean DELTA_POLLING_DEFAULT = false;
+    private static final int WRITE_PIPELINE_WINDOW_SIZE_DEFAULT = 1;
+    private static final int WRITE_PIPELINE_REQUEST_SIZE_DEFAULT = 256 * 1024;
+    private static final int BATCH_SIZE_DEFAULT = 1;
+    private static final long BATCH_MAX_BYTES_DEFAULT = 1024 * 1024;
+    private static final long BATCH_MAX_WAIT_TIME_DEFAULT = 100;
+    private static final String COMPRESSION_DEFAULT = SftpConnector.PROPERTY_COMPRESSION_NONE;
+    private static final int COMPRESSION_LEVEL_DEFAULT = 6;
+    private static final long SEGMENTED_DOWNLOAD_THRESHOLD_DEFAULT = -1;
+    private static final int SEGMENTED_DOWNLOAD_PARALLELISM_DEFAULT = 4;
+
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
 
     public SftpUtil(ImmutableEndpoint endpoint)
     {
@@ -132,6 +152,219 @@ public class SftpUtil
         return SIZE_CHECK_WAIT_TIME_DEFAULT;
     }
 
+    public int getReadPipelineWindowSize()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_READ_PIPELINE_WINDOW_SIZE);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getReadPipelineWindowSize();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return READ_PIPELINE_WINDOW_SIZE_DEFAULT;
+    }
+
+    public int getReadPipelineRequestSize()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_READ_PIPELINE_REQUEST_SIZE);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getReadPipelineRequestSize();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return READ_PIPELINE_REQUEST_SIZE_DEFAULT;
+    }
+
+    public long getReadPipelineMaxBufferSize()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_READ_PIPELINE_MAX_BUFFER_SIZE);
+        if (endpointValue != null)
+        {
+            return Long.valueOf((String) endpointValue);
+        }
+
+        Long connectorValue = connector.getReadPipelineMaxBufferSize();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return READ_PIPELINE_MAX_BUFFER_SIZE_DEFAULT;
+    }
+
+    public int getStreamBufferSize()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_STREAM_BUFFER_SIZE);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getStreamBufferSize();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return STREAM_BUFFER_SIZE_DEFAULT;
+    }
+
+    public int getWritePipelineWindowSize()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_WRITE_PIPELINE_WINDOW_SIZE);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getWritePipelineWindowSize();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return WRITE_PIPELINE_WINDOW_SIZE_DEFAULT;
+    }
+
+    public int getWritePipelineRequestSize()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_WRITE_PIPELINE_REQUEST_SIZE);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getWritePipelineRequestSize();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return WRITE_PIPELINE_REQUEST_SIZE_DEFAULT;
+    }
+
+    /**
+     * @return the most messages written in one batch, 1 or less if messages are not
+     *         batched
+     */
+    public int getBatchSize()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_BATCH_SIZE);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getBatchSize();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return BATCH_SIZE_DEFAULT;
+    }
+
+    public long getBatchMaxBytes()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_BATCH_MAX_BYTES);
+        if (endpointValue != null)
+        {
+            return Long.valueOf((String) endpointValue);
+        }
+
+        Long connectorValue = connector.getBatchMaxBytes();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return BATCH_MAX_BYTES_DEFAULT;
+    }
+
+    public long getBatchMaxWaitTime()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_BATCH_MAX_WAIT_TIME);
+        if (endpointValue != null)
+        {
+            return Long.valueOf((String) endpointValue);
+        }
+
+        Long connectorValue = connector.getBatchMaxWaitTime();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return BATCH_MAX_WAIT_TIME_DEFAULT;
+    }
+
+    public long getSegmentedDownloadThreshold()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_SEGMENTED_DOWNLOAD_THRESHOLD);
+        if (endpointValue != null)
+        {
+            return Long.valueOf((String) endpointValue);
+        }
+
+        Long connectorValue = connector.getSegmentedDownloadThreshold();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return SEGMENTED_DOWNLOAD_THRESHOLD_DEFAULT;
+    }
+
+    public boolean isUseSegmentedDownload()
+    {
+        return getSegmentedDownloadThreshold() > 0;
+    }
+
+    public int getSegmentedDownloadParallelism()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_SEGMENTED_DOWNLOAD_PARALLELISM);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getSegmentedDownloadParallelism();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return SEGMENTED_DOWNLOAD_PARALLELISM_DEFAULT;
+    }
+
+    public String getSegmentedDownloadSpoolDir()
+    {
+        String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_SEGMENTED_DOWNLOAD_SPOOL_DIR);
+        if (endpointValue != null)
+        {
+            return endpointValue;
+        }
+
+        String connectorValue = connector.getSegmentedDownloadSpoolDir();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return null;
+    }
+
     public String getArchiveDir()
     {
         String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_ARCHIVE_DIR);
@@ -183,6 +416,127 @@ public class SftpUtil
         return null;
     }
 
+    public boolean isStreamingArchive()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_STREAMING_ARCHIVE);
+        if (endpointValue != null)
+        {
+            return Boolean.valueOf((String) endpointValue);
+        }
+
+        Boolean connectorValue = connector.isStreamingArchive();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return STREAMING_ARCHIVE_DEFAULT;
+    }
+
+    public boolean isDeltaPolling()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_DELTA_POLLING);
+        if (endpointValue != null)
+        {
+            return Boolean.valueOf((String) endpointValue);
+        }
+
+        Boolean connectorValue = connector.isDeltaPolling();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return DELTA_POLLING_DEFAULT;
+    }
+
+    /**
+     * @return the local directory of the listing snapshots used by deltaPolling, by
+     *         default the folder sftp-snapshots in the working directory of Mule
+     */
+    public String getSnapshotDir()
+    {
+        String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_SNAPSHOT_DIR);
+        if (endpointValue != null)
+        {
+            return endpointValue;
+        }
+
+        String connectorValue = connector.getSnapshotDir();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return connector.getMuleContext().getConfiguration().getWorkingDirectory() + "/sftp-snapshots";
+    }
+
+    public boolean isIncludeSubfolders()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_INCLUDE_SUBFOLDERS);
+        if (endpointValue != null)
+        {
+            return Boolean.valueOf((String) endpointValue);
+        }
+
+        Boolean connectorValue = connector.isIncludeSubfolders();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return INCLUDE_SUBFOLDERS_DEFAULT;
+    }
+
+    /**
+     * @return how many levels of subfolders are polled, a negative value for no
+     *         limit
+     */
+    public int getMaxSubfolderDepth()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_MAX_SUBFOLDER_DEPTH);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getMaxSubfolderDepth();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return MAX_SUBFOLDER_DEPTH_DEFAULT;
+    }
+
+    public String getSubfolderPattern()
+    {
+        String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_SUBFOLDER_PATTERN);
+        if (endpointValue != null)
+        {
+            return endpointValue;
+        }
+
+        return connector.getSubfolderPattern();
+    }
+
+    public int getSubfolderParallelism()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_SUBFOLDER_PARALLELISM);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getSubfolderParallelism();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return SUBFOLDER_PARALLELISM_DEFAULT;
+    }
+
     public boolean isUseTempFileTimestampSuffix()
     {
         Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_USE_TEMP_FILE_TIMESTAMP_SUFFIX);
@@ -217,6 +571,96 @@ public class SftpUtil
         return DUPLICATE_HANDLING_DEFAULT;
     }
 
+    /**
+     * @return none, zlib or adaptive
+     */
+    public String getCompression()
+    {
+        String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_COMPRESSION);
+        if (endpointValue != null)
+        {
+            return endpointValue;
+        }
+
+        String connectorValue = connector.getCompression();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return COMPRESSION_DEFAULT;
+    }
+
+    public boolean isAdaptiveCompression()
+    {
+        return SftpConnector.PROPERTY_COMPRESSION_ADAPTIVE.equals(getCompression());
+    }
+
+    public int getCompressionLevel()
+    {
+        Object endpointValue = endpoint.getProperty(SftpConnector.PROPERTY_COMPRESSION_LEVEL);
+        if (endpointValue != null)
+        {
+            return Integer.valueOf((String) endpointValue);
+        }
+
+        Integer connectorValue = connector.getCompressionLevel();
+        if (connectorValue != null)
+        {
+            return connectorValue;
+        }
+
+        return COMPRESSION_LEVEL_DEFAULT;
+    }
+
+    /**
+     * @return the ciphers the sessions propose, null for the jsch default. Ordered
+     *         by their throughput if the connector uses cipherProbe
+     */
+    public String getCiphers()
+    {
+        String value = (String) endpoint.getProperty(SftpConnector.PROPERTY_CIPHERS);
+        if (value == null)
+        {
+            value = connector.getCiphers();
+        }
+
+        if (connector.isCipherProbe())
+        {
+            return SftpCipherProbe.order(value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the MAC algorithms the sessions propose, null for the jsch default
+     */
+    public String getMacs()
+    {
+        String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_MACS);
+        if (endpointValue != null)
+        {
+            return endpointValue;
+        }
+
+        return connector.getMacs();
+    }
+
+    /**
+     * @return the key exchange algorithms the sessions propose, null for the jsch
+     *         default
+     */
+    public String getKexAlgorithms()
+    {
+        String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_KEX_ALGORITHMS);
+        if (endpointValue != null)
+        {
+            return endpointValue;
+        }
+
+        return connector.getKexAlgorithms();
+    }
+
     public String getIdentityFile()
     {
         String endpointValue = (String) endpoint.getProperty(SftpConnector.PROPERTY_IDENTITY_FILE);
@@ -255,8 +699,9 @@ public class SftpUtil
      * Changes the directory to the temp-dir on the <b>outbound</b> endpoint. Will
      * create the directory if it not already exists.
      * <p/>
-     * Note, this method is synchronized because it in rare cases can be called from
-     * two threads at the same time and thus cause an error.
+     * Note, creating the directory is synchronized per host and directory (see
+     * {@link SftpDirectoryLocks}) because it in rare cases can be called from two
+     * threads at the same time and thus cause an error.
      * 
      * @param sftpClient
      * @param endpointDir
@@ -267,9 +712,16 @@ public class SftpUtil
         String tempDir = getTempDirOutbound();
         String tempDirAbs = sftpClient.getAbsolutePath(endpointDir + "/" + tempDir);
 
+        SftpDirectoryCache directoryCache = connector.getDirectoryCache();
+        if (directoryCache.contains(endpoint.getEndpointURI(), tempDirAbs))
+        {
+            sftpClient.changeWorkingDirectory(tempDirAbs);
+            return;
+        }
+
         // We need to have a synchronized block if two++ threads tries to
         // create the same directory at the same time
-        synchronized (lock)
+        synchronized (SftpDirectoryLocks.getLock(sftpClient.getHost(), tempDirAbs))
         {
             // Try to change directory to the temp dir, if it fails - create it
             try
@@ -288,6 +740,40 @@ public class SftpUtil
                 sftpClient.changeWorkingDirectory(tempDirAbs);
             }
         }
+        directoryCache.add(endpoint.getEndpointURI(), tempDirAbs);
+    }
+
+    /**
+     * Creates the temp-dir on the <b>outbound</b> endpoint if it not already exists,
+     * and leaves the working directory at the endpoint directory. The temp-dir is
+     * remembered per host and user, so once it is known to exist this costs no round
+     * trips.
+     * 
+     * @param sftpClient
+     * @param endpointDir
+     * @throws IOException
+     * @see SftpDirectoryCache
+     */
+    public void createTempDirOnOutboundIfNotExists(SftpClient sftpClient, String endpointDir)
+        throws IOException
+    {
+        String tempDirAbs = sftpClient.getAbsolutePath(endpointDir + "/" + getTempDirOutbound());
+        if (connector.getDirectoryCache().contains(endpoint.getEndpointURI(), tempDirAbs))
+        {
+            return;
+        }
+
+        cwdToTempDirOnOutbound(sftpClient, endpointDir);
+        sftpClient.changeWorkingDirectory(endpointDir);
+    }
+
+    /**
+     * Forgets the directories known to exist on the host of the endpoint, e.g. after
+     * a transfer to the temp-dir failed
+     */
+    public void invalidateDirectoryCache()
+    {
+        connector.getDirectoryCache().invalidate(endpoint.getEndpointURI());
     }
 
     public boolean isKeepFileOnError()
@@ -308,14 +794,15 @@ public class SftpUtil
     }
 
     /**
-     * Should be moved to a util class that is not based on an endpoint... TODO: why
-     * is this method synchronized?
+     * Copies the stream to the file and closes the stream. The copy goes through the
+     * file channel with a large buffer, and is not synchronized, so archiving on
+     * one endpoint runs in parallel on as many threads as there are connections.
      * 
      * @param input
      * @param destination
      * @throws IOException
      */
-    public synchronized void copyStreamToFile(InputStream input, File destination) throws IOException
+    public void copyStreamToFile(InputStream input, File destination) throws IOException
     {
         try
         {
@@ -333,11 +820,11 @@ public class SftpUtil
             FileOutputStream output = new FileOutputStream(destination);
             try
             {
-                IOUtils.copy(input, output);
+                copy(input, output.getChannel());
             }
             finally
             {
-                if (output != null) output.close();
+                output.close();
             }
         }
         catch (IOException ex)
@@ -356,6 +843,92 @@ public class SftpUtil
         }
     }
 
+    private static void copy(InputStream input, FileChannel output) throws IOException
+    {
+        // Large reads bypass the buffer of SftpInputStream and are served in few
+        // requests by a pipelined stream
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = input.read(buffer)) != -1)
+        {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+            while (bytes.hasRemaining())
+            {
+                output.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Moves a local file. A rename is tried first, which is atomic within a file
+     * system. Otherwise the file is copied to a temporary file next to the
+     * destination and renamed from there, so the destination never holds a partial
+     * file.
+     * 
+     * @param source the file to move
+     * @param destination the file to move it to
+     * @throws IOException if the file could not be moved
+     */
+    public static void moveFile(File source, File destination) throws IOException
+    {
+        if (source.renameTo(destination))
+        {
+            return;
+        }
+        if (!source.exists())
+        {
+            throw new IOException("Failed to move " + source + " to " + destination + ", the file does not exist");
+        }
+
+        // Probably another file system
+        File folder = destination.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("sftp-", ".move", folder);
+        try
+        {
+            FileInputStream in = new FileInputStream(source);
+            try
+            {
+                FileOutputStream out = new FileOutputStream(temp);
+                try
+                {
+                    FileChannel inChannel = in.getChannel();
+                    FileChannel outChannel = out.getChannel();
+                    long size = inChannel.size();
+                    long position = 0;
+                    while (position < size)
+                    {
+                        position += inChannel.transferTo(position, size - position, outChannel);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            if (!temp.renameTo(destination) && !(destination.delete() && temp.renameTo(destination)))
+            {
+                throw new IOException("Failed to move " + source + " to " + destination);
+            }
+        }
+        finally
+        {
+            if (temp.exists())
+            {
+                temp.delete();
+            }
+        }
+
+        if (!source.delete())
+        {
+            logger.warn("Moved " + source + " to " + destination + " but could not delete " + source);
+        }
+    }
+
     public void setErrorOccurredOnInputStream(InputStream inputStream)
     {
 
@@ -13,14 +13,23 @@ package org.mule.transport.sftp.transformers;
 import org.mule.api.transformer.TransformerException;
 import org.mule.config.i18n.MessageFactory;
 import org.mule.transformer.AbstractTransformer;
+import org.mule.transport.sftp.SftpInputStream;
+import org.mule.transport.sftp.SftpTeeArchiveInputStream;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 
 /**
- * TODO
+ * <code>InputStreamToByteArray</code> reads a stream into a byte array. If the size
+ * of the stream is known up front (the size of the remote file for an
+ * <code>SftpInputStream</code>, the length of a local file) the array is allocated
+ * with its final size and the stream is read straight into it. Otherwise the stream
+ * is read into chunks of increasing size, which are copied once into the result.
  */
 public class InputStreamToByteArray extends AbstractTransformer
 {
@@ -29,6 +38,9 @@ public class InputStreamToByteArray extends AbstractTransformer
      */
     private static final long serialVersionUID = -7444711427779720031L;
 
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
     public InputStreamToByteArray()
     {
         registerSourceType(InputStream.class);
@@ -45,16 +57,16 @@ public class InputStreamToByteArray extends AbstractTransformer
             {
                 inputStream = (InputStream) msg;
 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-                byte[] buffer = new byte[1024];
-                int len;
-                while ((len = inputStream.read(buffer)) > 0)
+                long size = getSize(inputStream);
+                if (size > Integer.MAX_VALUE)
                 {
-                    baos.write(buffer, 0, len);
+                    throw new IOException("The stream is too large for a byte array: " + size + " bytes");
                 }
-
-                return baos.toByteArray();
+                if (size >= 0)
+                {
+                    return readSized(inputStream, (int) size);
+                }
+                return readChunked(inputStream, new ArrayList<byte[]>(), 0, MIN_CHUNK_SIZE);
             }
             catch (Exception e)
             {
@@ -73,4 +85,121 @@ public class InputStreamToByteArray extends AbstractTransformer
         }
     }
 
+    /**
+     * @return the number of bytes left in the stream, -1 if unknown
+     */
+    private long getSize(InputStream inputStream) throws IOException
+    {
+        if (inputStream instanceof SftpInputStream)
+        {
+            return ((SftpInputStream) inputStream).getFileSize();
+        }
+        if (inputStream instanceof SftpTeeArchiveInputStream)
+        {
+            return ((SftpTeeArchiveInputStream) inputStream).getFileSize();
+        }
+        if (inputStream instanceof FileInputStream)
+        {
+            FileInputStream fis = (FileInputStream) inputStream;
+            return fis.getChannel().size() - fis.getChannel().position();
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a stream of the expected size into an array of that size. If the
+     * stream turns out to be longer (e.g. the remote file was appended to), the rest
+     * is read in chunks.
+     */
+    private byte[] readSized(InputStream inputStream, int size) throws IOException
+    {
+        byte[] result = new byte[size];
+        int length = readFully(inputStream, result, 0);
+        if (length < size)
+        {
+            byte[] shorter = new byte[length];
+            System.arraycopy(result, 0, shorter, 0, length);
+            return shorter;
+        }
+
+        int next = inputStream.read();
+        if (next == -1)
+        {
+            return result;
+        }
+
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        chunks.add(result);
+        byte[] chunk = new byte[MIN_CHUNK_SIZE];
+        chunk[0] = (byte) next;
+        int chunkLength = 1 + readFully(inputStream, chunk, 1);
+        return readChunked(inputStream, chunks, size, chunk, chunkLength);
+    }
+
+    private byte[] readChunked(InputStream inputStream, List<byte[]> chunks, long total, int chunkSize)
+        throws IOException
+    {
+        byte[] chunk = new byte[chunkSize];
+        return readChunked(inputStream, chunks, total, chunk, readFully(inputStream, chunk, 0));
+    }
+
+    /**
+     * Reads the rest of the stream into chunks, doubling the chunk size up to
+     * <code>MAX_CHUNK_SIZE</code>, and concatenates them.
+     *
+     * @param chunks the full chunks read so far
+     * @param total the number of bytes in the full chunks
+     * @param chunk the current chunk
+     * @param chunkLength the number of bytes in the current chunk
+     */
+    private byte[] readChunked(InputStream inputStream,
+                               List<byte[]> chunks,
+                               long total,
+                               byte[] chunk,
+                               int chunkLength) throws IOException
+    {
+        while (chunkLength == chunk.length)
+        {
+            chunks.add(chunk);
+            total += chunkLength;
+            chunk = new byte[Math.min(MAX_CHUNK_SIZE, chunk.length * 2)];
+            chunkLength = readFully(inputStream, chunk, 0);
+        }
+
+        total += chunkLength;
+        if (total > Integer.MAX_VALUE)
+        {
+            throw new IOException("The stream is too large for a byte array: " + total + " bytes");
+        }
+
+        byte[] result = new byte[(int) total];
+        int position = 0;
+        for (byte[] full : chunks)
+        {
+            System.arraycopy(full, 0, result, position, full.length);
+            position += full.length;
+        }
+        System.arraycopy(chunk, 0, result, position, chunkLength);
+        return result;
+    }
+
+    /**
+     * @return the number of bytes read into the buffer from the offset on, less than
+     *         the space left only if the end of the stream was reached
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer, int offset) throws IOException
+    {
+        int position = offset;
+        while (position < buffer.length)
+        {
+            int n = inputStream.read(buffer, position, buffer.length - position);
+            if (n < 0)
+            {
+                break;
+            }
+            position += n;
+        }
+        return position - offset;
+    }
+
 }
@@ -0,0 +1,68 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+
+import com.jcraft.jsch.JSch;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * JUnit test for ordering the cipher proposal by the throughput of the ciphers
+ */
+public class SftpCipherProbeTestCase extends AbstractMuleTestCase
+{
+    public void testDefaultProposal()
+    {
+        String ordered = SftpCipherProbe.order(null);
+        Set<String> defaults = new HashSet<String>(Arrays.asList(JSch.getConfig("cipher.c2s").split(",")));
+        String[] ciphers = ordered.split(",");
+        assertTrue(ciphers.length > 0);
+        assertTrue(defaults.containsAll(Arrays.asList(ciphers)));
+        assertTrue(Arrays.asList(ciphers).contains("aes128-ctr"));
+    }
+
+    public void testOnlyAesCtrReordered()
+    {
+        String[] ciphers = SftpCipherProbe.order("3des-cbc,aes256-ctr,blowfish-cbc,aes128-ctr").split(",");
+        assertEquals(4, ciphers.length);
+
+        // The other ciphers keep their place, however fast they are
+        assertEquals("3des-cbc", ciphers[0]);
+        assertEquals("blowfish-cbc", ciphers[2]);
+
+        // Fastest first
+        assertEquals(new HashSet<String>(Arrays.asList("aes128-ctr", "aes256-ctr")),
+            new HashSet<String>(Arrays.asList(ciphers[1], ciphers[3])));
+        assertTrue(SftpCipherProbe.getThroughput(ciphers[1]) >= SftpCipherProbe.getThroughput(ciphers[3]));
+    }
+
+    public void testUnknownCiphersDropped()
+    {
+        assertEquals("aes128-cbc", SftpCipherProbe.order("foo-cbc, aes128-cbc,aes128-cbc"));
+        assertEquals("aes128-ctr", SftpCipherProbe.order("foo-ctr,aes128-ctr"));
+        assertEquals(-1.0, SftpCipherProbe.getThroughput("foo-cbc"));
+        assertEquals(-1.0, SftpCipherProbe.getThroughput("hmac-sha1"));
+    }
+
+    public void testNothingUsable()
+    {
+        assertEquals("foo-cbc,bar-ctr", SftpCipherProbe.order("foo-cbc,bar-ctr"));
+    }
+
+    public void testResultsCached()
+    {
+        assertSame(SftpCipherProbe.order("aes128-ctr,3des-cbc"), SftpCipherProbe.order("aes128-ctr,3des-cbc"));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.api.endpoint.EndpointURI;
+import org.mule.endpoint.MuleEndpointURI;
+import org.mule.tck.AbstractMuleTestCase;
+
+/**
+ * JUnit test for SftpClaimRegistry
+ */
+public class SftpClaimRegistryTestCase extends AbstractMuleTestCase
+{
+    public void testFileCanOnlyBeClaimedOnce() throws Exception
+    {
+        SftpClaimRegistry registry = new SftpClaimRegistry();
+        EndpointURI uri = new MuleEndpointURI("sftp://user@localhost:4242/data", muleContext);
+
+        SftpClaimRegistry.Claim claim = registry.claim(uri, "file.txt");
+        assertNotNull(claim);
+        assertNull(registry.claim(uri, "file.txt"));
+        assertTrue(registry.isClaimed(uri, "file.txt"));
+
+        claim.release();
+        assertFalse(registry.isClaimed(uri, "file.txt"));
+        assertNotNull(registry.claim(uri, "file.txt"));
+    }
+
+    public void testClaimsAreKeyedByEndpoint() throws Exception
+    {
+        SftpClaimRegistry registry = new SftpClaimRegistry();
+        EndpointURI uri1 = new MuleEndpointURI("sftp://user@localhost:4242/data", muleContext);
+        EndpointURI uri2 = new MuleEndpointURI("sftp://user@localhost:4242/data2", muleContext);
+
+        assertNotNull(registry.claim(uri1, "file.txt"));
+        assertNotNull(registry.claim(uri2, "file.txt"));
+        assertEquals(2, registry.size());
+    }
+
+    public void testStaleReleaseKeepsNewClaim() throws Exception
+    {
+        SftpClaimRegistry registry = new SftpClaimRegistry();
+        EndpointURI uri = new MuleEndpointURI("sftp://user@localhost:4242/data", muleContext);
+
+        SftpClaimRegistry.Claim first = registry.claim(uri, "file.txt");
+        first.release();
+        SftpClaimRegistry.Claim second = registry.claim(uri, "file.txt");
+        assertNotNull(second);
+
+        // Releasing the first claim again must not release the second one
+        first.release();
+        assertTrue(registry.isClaimed(uri, "file.txt"));
+    }
+}
@@ -12,6 +12,12 @@ package org.mule.transport.sftp;
 
 import org.mule.tck.AbstractMuleTestCase;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * JUnit test for SftpClient
  * 
@@ -42,4 +48,67 @@ public class SftpClientTestCase extends AbstractMuleTestCase
         // path
         assertEquals("foo", client.getAbsolutePath("foo"));
     }
+
+    public void testReplaceExistingFile() throws Exception
+    {
+        StubClient client = new StubClient();
+        client.files.add("/data/tmp/file.txt");
+        client.files.add("/data/file.txt");
+
+        client.replace("/data/tmp/file.txt", "/data/file.txt");
+
+        assertEquals("[rename /data/tmp/file.txt, delete /data/file.txt, rename /data/tmp/file.txt]",
+            client.requests.toString());
+        assertTrue(client.files.contains("/data/file.txt"));
+        assertFalse(client.files.contains("/data/tmp/file.txt"));
+    }
+
+    public void testReplaceWithoutExistingFile() throws Exception
+    {
+        StubClient client = new StubClient();
+        client.files.add("/data/tmp/file.txt");
+
+        client.replace("/data/tmp/file.txt", "/data/file.txt");
+
+        assertEquals("[rename /data/tmp/file.txt]", client.requests.toString());
+        assertTrue(client.files.contains("/data/file.txt"));
+    }
+
+    /**
+     * A client with an in-memory server whose renames don't replace files
+     */
+    private static class StubClient extends SftpClient
+    {
+        final Set<String> files = new HashSet<String>();
+        final List<String> requests = new ArrayList<String>();
+
+        StubClient()
+        {
+            super("hostName");
+        }
+
+        @Override
+        public void rename(String filename, String dest) throws IOException
+        {
+            requests.add("rename " + filename);
+            if (files.contains(dest) || !files.remove(filename))
+            {
+                throw new IOException("Failure");
+            }
+            files.add(dest);
+        }
+
+        @Override
+        public void deleteFile(String fileName) throws IOException
+        {
+            requests.add("delete " + fileName);
+            files.remove(fileName);
+        }
+
+        @Override
+        public boolean exists(String path)
+        {
+            return files.contains(path);
+        }
+    }
 }
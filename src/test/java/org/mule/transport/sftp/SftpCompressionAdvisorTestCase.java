@@ -0,0 +1,122 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * JUnit test for the decisions of the adaptive compression
+ */
+public class SftpCompressionAdvisorTestCase extends AbstractMuleTestCase
+{
+    public void testTextStaysCompressed()
+    {
+        SftpCompressionAdvisor advisor = new SftpCompressionAdvisor();
+        byte[] text = text(100000);
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(advisor.sample(text, 0, text.length) < 0.5);
+        }
+        assertTrue(advisor.isCompressionWorthwhile());
+        assertTrue(advisor.isCompressionWorthwhile("orders.csv"));
+    }
+
+    public void testRandomDataTurnsCompressionOff()
+    {
+        SftpCompressionAdvisor advisor = new SftpCompressionAdvisor();
+        byte[] random = random(100000);
+        for (int i = 0; i < 5; i++)
+        {
+            advisor.sample(random, 0, random.length);
+        }
+        assertFalse(advisor.isCompressionWorthwhile());
+    }
+
+    public void testHysteresis()
+    {
+        // Compresses to about 85%, between the ratios that switch it off and on
+        byte[] mixed = random(SftpCompressionAdvisor.SAMPLE_SIZE);
+        Arrays.fill(mixed, mixed.length * 85 / 100, mixed.length, (byte) 0);
+        double ratio = SftpCompressionAdvisor.measureRatio(mixed, 0, mixed.length);
+        assertTrue(ratio > 0.8 && ratio < 0.9);
+
+        SftpCompressionAdvisor advisor = new SftpCompressionAdvisor();
+        for (int i = 0; i < 10; i++)
+        {
+            advisor.sample(mixed, 0, mixed.length);
+        }
+        assertTrue(advisor.isCompressionWorthwhile());
+
+        byte[] random = random(100000);
+        for (int i = 0; i < 5; i++)
+        {
+            advisor.sample(random, 0, random.length);
+        }
+        assertFalse(advisor.isCompressionWorthwhile());
+        for (int i = 0; i < 10; i++)
+        {
+            advisor.sample(mixed, 0, mixed.length);
+        }
+        assertFalse(advisor.isCompressionWorthwhile());
+
+        byte[] text = text(100000);
+        advisor.sample(text, 0, text.length);
+        assertTrue(advisor.isCompressionWorthwhile());
+    }
+
+    public void testSmallSamplesIgnored()
+    {
+        SftpCompressionAdvisor advisor = new SftpCompressionAdvisor();
+        byte[] random = random(100);
+        for (int i = 0; i < 5; i++)
+        {
+            advisor.sample(random, 0, random.length);
+        }
+        assertTrue(advisor.isCompressionWorthwhile());
+    }
+
+    public void testCompressedExtensions()
+    {
+        SftpCompressionAdvisor advisor = new SftpCompressionAdvisor();
+        assertFalse(advisor.isCompressionWorthwhile("archive.ZIP"));
+        assertFalse(advisor.isCompressionWorthwhile("dir.v2/photo.jpg"));
+        assertTrue(advisor.isCompressionWorthwhile("noextension"));
+        assertTrue(advisor.isCompressionWorthwhile("report.xml"));
+    }
+
+    public void testCompressionBeforeLogin() throws Exception
+    {
+        SftpClient client = new SftpClient("localhost");
+        assertFalse(client.isCompression());
+        client.setCompression(true);
+        assertTrue(client.isCompression());
+    }
+
+    private static byte[] text(int size)
+    {
+        StringBuilder text = new StringBuilder(size + 100);
+        for (int i = 0; text.length() < size; i++)
+        {
+            text.append(i).append(";customer-").append(i % 97).append(";EUR;ORDER_CONFIRMED\n");
+        }
+        return text.toString().getBytes();
+    }
+
+    private static byte[] random(int size)
+    {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
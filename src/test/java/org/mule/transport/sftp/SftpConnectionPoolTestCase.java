@@ -0,0 +1,114 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.tck.AbstractMuleTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JUnit test for the settings of the connection pools and the clients they
+ * create, against a connector that doesn't connect
+ */
+public class SftpConnectionPoolTestCase extends AbstractMuleTestCase
+{
+    private final CountDownLatch blockConnect = new CountDownLatch(1);
+    private StubSftpConnector connector;
+    private ImmutableEndpoint endpoint;
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        // The clients are created once the test lets them
+        connector = new StubSftpConnector(muleContext, "sftpPool",
+            new StubSftpConnector.ClientFactory()
+            {
+                public SftpClient createClient() throws Exception
+                {
+                    assertTrue(blockConnect.await(5, TimeUnit.SECONDS));
+                    return new SftpClient("localhost");
+                }
+            });
+        endpoint = connector.createInboundEndpoint();
+    }
+
+    @Override
+    protected void doTearDown() throws Exception
+    {
+        blockConnect.countDown();
+    }
+
+    public void testPoolSettings() throws Exception
+    {
+        connector.setMinIdleConnections(2);
+        connector.setMaxIdleConnections(3);
+        connector.setMaxConnectionWait(1234);
+        connector.setValidateConnections(true);
+
+        GenericObjectPool pool = (GenericObjectPool) connector.getClientPool(endpoint);
+        assertEquals(4, pool.getMaxActive());
+        assertEquals(2, pool.getMinIdle());
+        assertEquals(3, pool.getMaxIdle());
+        assertEquals(1234, pool.getMaxWait());
+        assertTrue(pool.getTestOnBorrow());
+
+        // No evictor unless configured
+        assertTrue(pool.getTimeBetweenEvictionRunsMillis() <= 0);
+        assertFalse(pool.getTestWhileIdle());
+    }
+
+    public void testEvictorSettings() throws Exception
+    {
+        connector.setEvictionInterval(1000);
+        connector.setMinEvictableIdleTime(5000);
+
+        GenericObjectPool pool = (GenericObjectPool) connector.getClientPool(endpoint);
+        assertEquals(1000, pool.getTimeBetweenEvictionRunsMillis());
+        assertEquals(5000, pool.getMinEvictableIdleTimeMillis());
+
+        // All idle connections are tested by each run
+        assertEquals(-1, pool.getNumTestsPerEvictionRun());
+        assertTrue(pool.getTestWhileIdle());
+    }
+
+    public void testPrewarmInBackground() throws Exception
+    {
+        connector.setMinIdleConnections(2);
+
+        // Returns while the connections are still being made
+        connector.prewarmClientPool(endpoint);
+        ObjectPool pool = connector.getClientPool(endpoint);
+        assertEquals(0, pool.getNumIdle());
+
+        blockConnect.countDown();
+        for (int i = 0; i < 100 && pool.getNumIdle() < 2; i++)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals(2, pool.getNumIdle());
+    }
+
+    public void testKeepAliveOfClients() throws Exception
+    {
+        SftpClient client = SftpConnectionFactory.newClient(endpoint);
+        assertEquals(0, client.getServerAliveInterval());
+
+        connector.setServerAliveInterval(15000);
+        connector.setServerAliveCountMax(5);
+        client = SftpConnectionFactory.newClient(endpoint);
+        assertEquals(15000, client.getServerAliveInterval());
+        assertEquals(5, client.getServerAliveCountMax());
+    }
+}
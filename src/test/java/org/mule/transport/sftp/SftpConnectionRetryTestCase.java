@@ -0,0 +1,229 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.tck.AbstractMuleTestCase;
+
+import com.jcraft.jsch.ChannelSftp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnit test for replacing a pooled connection that was lost while idle, against
+ * stub clients that only simulate the connection state
+ */
+public class SftpConnectionRetryTestCase extends AbstractMuleTestCase
+{
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger destroyed = new AtomicInteger();
+    private StubSftpConnector connector;
+    private ImmutableEndpoint endpoint;
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        connector = new StubSftpConnector(muleContext, "sftpRetry", new StubSftpConnector.ClientFactory()
+        {
+            public SftpClient createClient()
+            {
+                created.incrementAndGet();
+                return new StubClient();
+            }
+        });
+        endpoint = connector.createOutboundEndpoint();
+    }
+
+    public void testLostPooledConnectionReplaced() throws Exception
+    {
+        ObjectPool pool = connector.getClientPool(endpoint);
+        StubClient first = (StubClient) connector.createSftpClient(endpoint);
+        StubClient second = (StubClient) connector.createSftpClient(endpoint);
+        pool.returnObject(first);
+        pool.returnObject(second);
+
+        // Both pass the connected validation, but the firewall dropped them
+        first.lost = true;
+        second.lost = true;
+
+        StubClient client = (StubClient) connector.createSftpClient(endpoint);
+        assertNotSame(first, client);
+        assertNotSame(second, client);
+        assertEquals(3, created.get());
+        assertEquals(2, destroyed.get());
+        assertEquals(1, pool.getNumActive());
+        assertEquals(0, pool.getNumIdle());
+    }
+
+    public void testLiveIdleConnectionKept() throws Exception
+    {
+        ObjectPool pool = connector.getClientPool(endpoint);
+        StubClient first = (StubClient) connector.createSftpClient(endpoint);
+        StubClient second = (StubClient) connector.createSftpClient(endpoint);
+        pool.returnObject(first);
+        pool.returnObject(second);
+
+        // Only the most recently returned connection was dropped
+        second.lost = true;
+
+        StubClient client = (StubClient) connector.createSftpClient(endpoint);
+        assertSame(first, client);
+        assertEquals(2, created.get());
+        assertEquals(1, destroyed.get());
+    }
+
+    public void testSilentlyDroppedConnectionReplaced() throws Exception
+    {
+        StubClient first = (StubClient) connector.createSftpClient(endpoint);
+        connector.getClientPool(endpoint).returnObject(first);
+
+        // Still looks connected, but the server doesn't answer anymore
+        first.dropped = true;
+
+        StubClient client = (StubClient) connector.createSftpClient(endpoint);
+        assertNotSame(first, client);
+        assertEquals(2, created.get());
+        assertEquals(1, destroyed.get());
+    }
+
+    public void testErrorOfConnectedClientNotRetried() throws Exception
+    {
+        StubClient client = (StubClient) connector.createSftpClient(endpoint);
+        client.missingDirectory = true;
+        connector.getClientPool(endpoint).returnObject(client);
+
+        try
+        {
+            connector.createSftpClient(endpoint);
+            fail("The missing directory should not be retried");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        assertEquals(1, created.get());
+    }
+
+    public void testProbeTimeout() throws Exception
+    {
+        SftpClient client = new SftpClient("localhost")
+        {
+            @Override
+            public boolean isConnected()
+            {
+                return true;
+            }
+
+            @Override
+            public ChannelSftp getChannelSftp()
+            {
+                return new ChannelSftp()
+                {
+                    @Override
+                    public String realpath(String path)
+                    {
+                        // The answer never comes
+                        try
+                        {
+                            Thread.sleep(10000);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // cancelled
+                        }
+                        return path;
+                    }
+                };
+            }
+        };
+        client.setProbeTimeout(100);
+
+        long start = System.currentTimeMillis();
+        assertFalse(client.isAlive(0));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    public void testProbeValidatedOnBorrow() throws Exception
+    {
+        connector.setValidateConnections(false);
+        connector.setValidationStrategy(SftpConnector.PROPERTY_VALIDATION_STRATEGY_PROBE);
+        assertTrue(((GenericObjectPool) connector.getClientPool(endpoint)).getTestOnBorrow());
+    }
+
+    public void testProbeValidation() throws Exception
+    {
+        assertFalse(new SftpClient("localhost").isAlive(0));
+
+        connector.setValidationStrategy(SftpConnector.PROPERTY_VALIDATION_STRATEGY_PROBE);
+        SftpConnectionFactory factory = new SftpConnectionFactory(endpoint);
+        StubClient client = new StubClient();
+        assertTrue(factory.validateObject(client));
+        client.lost = true;
+        assertFalse(factory.validateObject(client));
+    }
+
+    /**
+     * Simulates the connection state, a lost connection is noticed by the first
+     * remote operation. A dropped connection still looks connected
+     */
+    private class StubClient extends SftpClient
+    {
+        volatile boolean lost = false;
+        volatile boolean dropped = false;
+        volatile boolean connected = true;
+        volatile boolean missingDirectory = false;
+
+        StubClient()
+        {
+            super("localhost");
+        }
+
+        @Override
+        public void changeWorkingDirectory(String wd) throws IOException
+        {
+            if (lost)
+            {
+                connected = false;
+                throw new IOException("Pipe closed");
+            }
+            if (dropped)
+            {
+                throw new IOException("Read timed out");
+            }
+            if (missingDirectory)
+            {
+                throw new IOException("No such file");
+            }
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return connected;
+        }
+
+        @Override
+        public boolean isAlive(long maxAge)
+        {
+            return connected && !lost && !dropped;
+        }
+
+        @Override
+        public void disconnect()
+        {
+            connected = false;
+            destroyed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.api.endpoint.EndpointURI;
+import org.mule.endpoint.MuleEndpointURI;
+import org.mule.tck.AbstractMuleTestCase;
+
+/**
+ * JUnit test for SftpDirectoryCache
+ */
+public class SftpDirectoryCacheTestCase extends AbstractMuleTestCase
+{
+    public void testDirectoriesAreScopedByHostAndUser() throws Exception
+    {
+        SftpDirectoryCache cache = new SftpDirectoryCache();
+        EndpointURI uri = new MuleEndpointURI("sftp://user@localhost:4242/data", muleContext);
+        EndpointURI samePlace = new MuleEndpointURI("sftp://user@localhost:4242/other", muleContext);
+        EndpointURI otherUser = new MuleEndpointURI("sftp://other@localhost:4242/data", muleContext);
+
+        cache.add(uri, "/data/tmp");
+
+        assertTrue(cache.contains(uri, "/data/tmp"));
+        assertTrue(cache.contains(samePlace, "/data/tmp"));
+        assertFalse(cache.contains(otherUser, "/data/tmp"));
+        assertFalse(cache.contains(uri, "/data/tmp2"));
+    }
+
+    public void testInvalidateForgetsHostAndUser() throws Exception
+    {
+        SftpDirectoryCache cache = new SftpDirectoryCache();
+        EndpointURI uri = new MuleEndpointURI("sftp://user@localhost:4242/data", muleContext);
+        EndpointURI otherUser = new MuleEndpointURI("sftp://other@localhost:4242/data", muleContext);
+
+        cache.add(uri, "/data/tmp");
+        cache.add(uri, "/data/tmp2");
+        cache.add(otherUser, "/data/tmp");
+        assertEquals(3, cache.size());
+
+        cache.invalidate(uri);
+
+        assertFalse(cache.contains(uri, "/data/tmp"));
+        assertTrue(cache.contains(otherUser, "/data/tmp"));
+        assertEquals(1, cache.size());
+    }
+}
@@ -10,10 +10,13 @@
 
 package org.mule.transport.sftp;
 
-import org.apache.commons.lang.NotImplementedException;
 import org.mule.api.endpoint.ImmutableEndpoint;
-import org.mule.api.transport.DispatchException;
+import org.mule.api.service.Service;
 import org.mule.module.client.MuleClient;
+import org.mule.transport.sftp.util.ValueHolder;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
 
 /**
  * Test the archive features.
@@ -70,28 +73,68 @@ public class SftpDuplicateHandlingFunctionalTestCase extends AbstractSftpTestCas
     }
 
     /**
-     * Test 2 - test duplicate handling by overwriting the existing file Not yet
-     * implemented, so currently we check for a valid exception...
+     * Test 2 - test duplicate handling by overwriting the existing file
      */
     public void testDuplicateHandlingOverwrite() throws Exception
     {
-        // TODO. Add some tests specific to this test, i.e. not only rely on the
-        // tests performed by executeTest().
+        final MuleClient muleClient = new MuleClient(muleContext);
+        final Service receiving = muleContext.getRegistry().lookupService("receiving2");
 
+        // The receiver must not pick up the existing file before it is replaced
+        receiving.stop();
+        SftpClient sftpClient = getSftpClient(muleClient, "inboundEndpoint2");
         try
         {
-            executeBaseTest("inboundEndpoint2", "vm://test.upload2", "file2.txt", SEND_SIZE, "receiving2",
-                TIMEOUT, "sftp", "sending2");
-            fail("Should have received an Exception");
+            sftpClient.changeWorkingDirectory(getPathByEndpoint(muleClient, sftpClient, "inboundEndpoint2"));
+            sftpClient.storeFile("file2.txt", new ByteArrayInputStream("existing content".getBytes()));
         }
-        catch (Exception e)
+        finally
         {
-            assertTrue("did not receive DispatchException, got : " + e.getClass().toString(),
-                e instanceof DispatchException);
-            assertTrue(
-                "did not receive NotImplementedException, got : " + e.getCause().getClass().toString(),
-                e.getCause() instanceof NotImplementedException);
+            sftpClient.disconnect();
         }
+
+        // Start the receiver as soon as the existing file has the size of the new
+        // one, it then only receives the new content
+        final ValueHolder<String[]> files = new ValueHolder<String[]>();
+        Thread starter = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    SftpClient client = getSftpClient(muleClient, "inboundEndpoint2");
+                    try
+                    {
+                        client.changeWorkingDirectory(getPathByEndpoint(muleClient, client, "inboundEndpoint2"));
+                        long end = System.currentTimeMillis() + TIMEOUT;
+                        while (client.getSize("file2.txt") != SEND_SIZE && System.currentTimeMillis() < end)
+                        {
+                            Thread.sleep(100);
+                        }
+                        files.value = client.listFiles();
+                    }
+                    finally
+                    {
+                        client.disconnect();
+                    }
+                    receiving.start();
+                }
+                catch (Exception e)
+                {
+                    logger.error("Failed to wait for the replaced file", e);
+                }
+            }
+        };
+        starter.start();
+
+        executeBaseTest("inboundEndpoint2", "vm://test.upload2", "file2.txt", SEND_SIZE, "receiving2",
+            TIMEOUT);
+        starter.join();
+
+        // The existing file was replaced, not kept next to the new one
+        assertTrue("Unexpected files: " + Arrays.toString(files.value),
+            Arrays.equals(new String[]{"file2.txt"}, files.value));
     }
 
     /**
@@ -0,0 +1,58 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+
+import java.util.Collections;
+
+/**
+ * JUnit test for SftpFileSizeTracker
+ */
+public class SftpFileSizeTrackerTestCase extends AbstractMuleTestCase
+{
+    public void testFileIsStableAfterWaitTime()
+    {
+        SftpFileSizeTracker tracker = new SftpFileSizeTracker(1000);
+
+        assertFalse(tracker.isStable(entry("file.txt", 100, 5000), 10000));
+        assertFalse(tracker.isStable(entry("file.txt", 100, 5000), 10500));
+        assertTrue(tracker.isStable(entry("file.txt", 100, 5000), 11000));
+    }
+
+    public void testGrowingFileIsNotStable()
+    {
+        SftpFileSizeTracker tracker = new SftpFileSizeTracker(1000);
+
+        assertFalse(tracker.isStable(entry("file.txt", 100, 5000), 10000));
+        assertFalse(tracker.isStable(entry("file.txt", 200, 5000), 12000));
+        assertFalse(tracker.isStable(entry("file.txt", 200, 6000), 14000));
+        assertTrue(tracker.isStable(entry("file.txt", 200, 6000), 15000));
+    }
+
+    public void testRemovedFilesAreForgotten()
+    {
+        SftpFileSizeTracker tracker = new SftpFileSizeTracker(1000);
+
+        tracker.isStable(entry("file1.txt", 100, 5000), 10000);
+        tracker.isStable(entry("file2.txt", 100, 5000), 10000);
+        tracker.retainAll(Collections.singleton("file2.txt"));
+
+        assertEquals(1, tracker.size());
+        assertFalse(tracker.isStable(entry("file1.txt", 100, 5000), 20000));
+        assertTrue(tracker.isStable(entry("file2.txt", 100, 5000), 20000));
+    }
+
+    private static SftpFileEntry entry(String name, long size, long lastModifiedTime)
+    {
+        return new SftpFileEntry(name, size, lastModifiedTime, 0644, false, false);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * JUnit test for the buffering and the channel view of SftpInputStream
+ */
+public class SftpInputStreamTestCase extends AbstractMuleTestCase
+{
+    private final byte[] content = createContent(10000);
+
+    public void testMixedReads() throws Exception
+    {
+        assertMixedReads(16);
+    }
+
+    public void testMixedReadsWithoutBuffer() throws Exception
+    {
+        assertMixedReads(0);
+    }
+
+    public void testChannelWithHeapBuffer() throws Exception
+    {
+        assertChannelRead(ByteBuffer.allocate(1000));
+    }
+
+    public void testChannelWithDirectBuffer() throws Exception
+    {
+        assertChannelRead(ByteBuffer.allocateDirect(1000));
+    }
+
+    public void testReadAfterCloseFails() throws Exception
+    {
+        SftpInputStream in = createStream(16);
+        ReadableByteChannel channel = in.getChannel();
+        in.close();
+
+        assertFalse(channel.isOpen());
+        try
+        {
+            in.read();
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    private void assertMixedReads(int bufferSize) throws Exception
+    {
+        SftpInputStream in = createStream(bufferSize);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] small = new byte[7];
+        byte[] large = new byte[100];
+
+        int i = 0;
+        while (true)
+        {
+            int n;
+            switch (i++ % 3)
+            {
+                case 0 :
+                    int b = in.read();
+                    if (b == -1)
+                    {
+                        n = -1;
+                    }
+                    else
+                    {
+                        out.write(b);
+                        n = 1;
+                    }
+                    break;
+                case 1 :
+                    n = in.read(small);
+                    if (n > 0)
+                    {
+                        out.write(small, 0, n);
+                    }
+                    break;
+                default :
+                    n = in.read(large, 10, 90);
+                    if (n > 0)
+                    {
+                        out.write(large, 10, n);
+                    }
+            }
+            if (n == -1)
+            {
+                break;
+            }
+        }
+
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+    }
+
+    private void assertChannelRead(ByteBuffer buffer) throws Exception
+    {
+        SftpInputStream in = createStream(16);
+        // Consume a little through the stream first, to have something buffered
+        int first = in.read();
+
+        ReadableByteChannel channel = in.getChannel();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        while (channel.read(buffer) != -1)
+        {
+            buffer.flip();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            out.write(bytes);
+            buffer.clear();
+        }
+
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+    }
+
+    private SftpInputStream createStream(int bufferSize) throws Exception
+    {
+        return new SftpInputStream(null, new ByteArrayInputStream(content), "file.txt", false, null, bufferSize);
+    }
+
+    private static byte[] createContent(int size)
+    {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            content[i] = (byte) (i * 13);
+        }
+        return content;
+    }
+}
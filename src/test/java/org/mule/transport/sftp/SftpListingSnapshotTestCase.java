@@ -0,0 +1,111 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * JUnit test for the snapshot of routed files used by deltaPolling
+ */
+public class SftpListingSnapshotTestCase extends AbstractMuleTestCase
+{
+    private File directory;
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        directory = FileUtils.newFile(System.getProperty("java.io.tmpdir"), "sftp-snapshot-" + System.nanoTime());
+    }
+
+    @Override
+    protected void doTearDown() throws Exception
+    {
+        FileUtils.deleteTree(directory);
+    }
+
+    public void testChangedFiles()
+    {
+        SftpListingSnapshot snapshot = new SftpListingSnapshot();
+        assertFalse(snapshot.isUnchanged(entry("a.txt", 10, 1000)));
+
+        snapshot.put(entry("a.txt", 10, 1000));
+        assertTrue(snapshot.isDirty());
+        assertTrue(snapshot.isUnchanged(entry("a.txt", 10, 1000)));
+        assertFalse(snapshot.isUnchanged(entry("a.txt", 11, 1000)));
+        assertFalse(snapshot.isUnchanged(entry("a.txt", 10, 2000)));
+        assertFalse(snapshot.isUnchanged(entry("b.txt", 10, 1000)));
+
+        snapshot.put(entry("a.txt", 11, 2000));
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.isUnchanged(entry("a.txt", 11, 2000)));
+    }
+
+    public void testRetain()
+    {
+        SftpListingSnapshot snapshot = new SftpListingSnapshot();
+        snapshot.put(entry("a.txt", 1, 1000));
+        snapshot.put(entry("b.txt", 2, 1000));
+        snapshot.put(entry("c.txt", 3, 1000));
+
+        snapshot.retain(new SftpFileEntry[]{entry("b.txt", 2, 1000), entry("d.txt", 4, 1000)});
+
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.isUnchanged(entry("b.txt", 2, 1000)));
+        assertFalse(snapshot.isUnchanged(entry("a.txt", 1, 1000)));
+    }
+
+    public void testSaveAndLoad() throws Exception
+    {
+        SftpListingSnapshot snapshot = new SftpListingSnapshot();
+        for (int i = 0; i < 100000; i++)
+        {
+            snapshot.put(entry("folder" + (i % 10) + "/file" + i + ".xml", i, i * 1000L));
+        }
+        File file = new File(directory, "endpoint.snapshot");
+        snapshot.save(file);
+        assertFalse(snapshot.isDirty());
+
+        SftpListingSnapshot loaded = new SftpListingSnapshot();
+        loaded.load(file);
+        assertEquals(100000, loaded.size());
+        assertFalse(loaded.isDirty());
+        for (int i = 0; i < 100000; i++)
+        {
+            assertTrue(loaded.isUnchanged(entry("folder" + (i % 10) + "/file" + i + ".xml", i, i * 1000L)));
+        }
+        assertFalse(loaded.isUnchanged(entry("folder0/file0.xml", 1, 0)));
+    }
+
+    public void testLoadMissingOrUnknownFile() throws Exception
+    {
+        SftpListingSnapshot snapshot = new SftpListingSnapshot();
+        snapshot.put(entry("a.txt", 1, 1000));
+        snapshot.load(new File(directory, "missing.snapshot"));
+        assertEquals(0, snapshot.size());
+
+        assertTrue(directory.mkdirs());
+        File file = new File(directory, "unknown.snapshot");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a snapshot".getBytes());
+        out.close();
+        snapshot.load(file);
+        assertEquals(0, snapshot.size());
+    }
+
+    private static SftpFileEntry entry(String name, long size, long lastModifiedTime)
+    {
+        return new SftpFileEntry(name, size, lastModifiedTime, 0100644, false, false);
+    }
+}
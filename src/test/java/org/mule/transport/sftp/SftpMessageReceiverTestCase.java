@@ -0,0 +1,177 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.DefaultMuleMessage;
+import org.mule.api.endpoint.InboundEndpoint;
+import org.mule.config.DefaultMuleConfiguration;
+import org.mule.construct.SimpleFlowConstruct;
+import org.mule.tck.AbstractMuleTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnit test for routing the files of a poll on the receiver threads, against a
+ * connector that doesn't connect
+ */
+public class SftpMessageReceiverTestCase extends AbstractMuleTestCase
+{
+    private StubSftpConnector connector;
+    private InboundEndpoint endpoint;
+    private SimpleFlowConstruct flow;
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        // Fails to connect without a network round trip
+        connector = new StubSftpConnector(muleContext, "sftpReceiver", new StubSftpConnector.ClientFactory()
+        {
+            public SftpClient createClient() throws Exception
+            {
+                throw new IOException("Connection refused");
+            }
+        });
+        endpoint = connector.createInboundEndpoint();
+        flow = new SimpleFlowConstruct("flow", muleContext);
+
+        // Stopping a receiver waits up to the shutdown timeout for the files being
+        // routed
+        ((DefaultMuleConfiguration) muleContext.getConfiguration()).setShutdownTimeout(5000);
+        muleContext.start();
+    }
+
+    public void testFilesRoutedConcurrently() throws Exception
+    {
+        final CountDownLatch allRouting = new CountDownLatch(4);
+        final AtomicInteger routed = new AtomicInteger();
+        TestReceiver receiver = new TestReceiver()
+        {
+            @Override
+            protected void routeFile(String path, SftpClaimRegistry.Claim claim) throws Exception
+            {
+                // Only returns if all four files are routed at the same time
+                allRouting.countDown();
+                assertTrue(allRouting.await(5, TimeUnit.SECONDS));
+                Thread.sleep(100);
+                routed.incrementAndGet();
+                claim.release();
+            }
+        };
+        receiver.start();
+
+        receiver.routeFiles(new String[]{"a.txt", "b.txt", "c.txt", "d.txt"});
+
+        // Stopping waits for the files being routed
+        receiver.stop();
+        assertEquals(4, routed.get());
+    }
+
+    public void testClaimReleasedOnWorkerFailure() throws Exception
+    {
+        TestReceiver receiver = new TestReceiver();
+        receiver.start();
+
+        receiver.routeFiles(new String[]{"a.txt", "b.txt"});
+        receiver.stop();
+
+        // Retrieving the files failed, they can be claimed by the next poll
+        SftpClaimRegistry claims = connector.getClaimRegistry();
+        assertNotNull(claims.claim(endpoint.getEndpointURI(), "a.txt"));
+        assertNotNull(claims.claim(endpoint.getEndpointURI(), "b.txt"));
+    }
+
+    public void testClaimReleasedWhenFilteredOut() throws Exception
+    {
+        TestReceiver receiver = new TestReceiver();
+        SftpClaimRegistry claims = connector.getClaimRegistry();
+        SftpClaimRegistry.Claim claim = claims.claim(endpoint.getEndpointURI(), "a.txt");
+
+        // A streaming archive payload wraps the stream that holds the claim
+        SftpInputStream in = new SftpInputStream(new SftpClient("localhost"),
+            new ByteArrayInputStream("content".getBytes()), "a.txt", false, endpoint);
+        in.setClaim(claim);
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        File archiveFile = new File(dir, "sftp-receiver-" + System.nanoTime() + ".txt");
+        SftpTeeArchiveInputStream payload = new SftpTeeArchiveInputStream(in,
+            new File(archiveFile.getPath() + ".part"), archiveFile);
+
+        receiver.handleUnacceptedFilter(new DefaultMuleMessage(payload, muleContext));
+
+        assertNotNull(claims.claim(endpoint.getEndpointURI(), "a.txt"));
+
+        // The rejected file is not archived
+        assertFalse(archiveFile.exists());
+        assertFalse(new File(archiveFile.getPath() + ".part").exists());
+    }
+
+    public void testFilteredOutFileDeletedWithStreamingArchive() throws Exception
+    {
+        connector.setStreamingArchive(true);
+        connector.setAutoDelete(true);
+        TestReceiver receiver = new TestReceiver();
+        SftpClaimRegistry claims = connector.getClaimRegistry();
+        SftpClaimRegistry.Claim claim = claims.claim(endpoint.getEndpointURI(), "a.txt");
+
+        final List<String> deleted = new ArrayList<String>();
+        SftpClient client = new SftpClient("localhost")
+        {
+            @Override
+            public void deleteFile(String fileName)
+            {
+                deleted.add(fileName);
+            }
+        };
+        SftpInputStream in = new SftpInputStream(client, new ByteArrayInputStream("content".getBytes()),
+            "a.txt", connector.isAutoDelete(), endpoint);
+        in.setClaim(claim);
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        File archiveFile = new File(dir, "sftp-receiver-" + System.nanoTime() + ".txt");
+        SftpTeeArchiveInputStream payload = new SftpTeeArchiveInputStream(in,
+            new File(archiveFile.getPath() + ".part"), archiveFile);
+        assertEquals('c', payload.read());
+
+        receiver.handleUnacceptedFilter(new DefaultMuleMessage(payload, muleContext));
+
+        // The rejected file is deleted like without the streaming archive, so the
+        // next poll doesn't retrieve it again
+        assertEquals(Collections.singletonList("a.txt"), deleted);
+        assertFalse(archiveFile.exists());
+        assertFalse(new File(archiveFile.getPath() + ".part").exists());
+        assertNotNull(claims.claim(endpoint.getEndpointURI(), "a.txt"));
+    }
+
+    /**
+     * Doesn't poll by itself
+     */
+    private class TestReceiver extends SftpMessageReceiver
+    {
+        TestReceiver() throws Exception
+        {
+            super(SftpMessageReceiverTestCase.this.connector, flow, SftpMessageReceiverTestCase.this.endpoint,
+                1000000);
+            initialise();
+        }
+
+        @Override
+        public void poll()
+        {
+            // the files are passed in by the test
+        }
+    }
+}
@@ -30,5 +30,17 @@ public class SftpNamespaceHandlerTestCase extends FunctionalTestCase
         assertEquals(1234, c.getFileAge());
         assertEquals("uploading", c.getTempDirOutbound());
         assertEquals(42, c.getMaxConnectionPoolSize());
+        assertEquals(5, c.getMaxChannelsPerSession());
+        assertEquals(2, c.getMinIdleConnections());
+        assertEquals(10, c.getMaxIdleConnections());
+        assertEquals(5000, c.getMaxConnectionWait());
+        assertEquals(60000, c.getEvictionInterval());
+        assertEquals(300000, c.getMinEvictableIdleTime());
+        assertEquals(30000, c.getServerAliveInterval());
+        assertEquals(4, c.getServerAliveCountMax());
+        assertTrue(c.isProbeValidation());
+        assertEquals(10000, c.getValidationCacheTime());
+        assertEquals(2000, c.getValidationTimeout());
+        assertTrue(c.isUseSessionSharing());
     }
 }
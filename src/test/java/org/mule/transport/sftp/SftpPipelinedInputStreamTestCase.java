@@ -0,0 +1,202 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnit test for SftpPipelinedInputStream, uses in-memory channels instead of a
+ * real sftp server.
+ */
+public class SftpPipelinedInputStreamTestCase extends AbstractMuleTestCase
+{
+    public void testChunksAreReassembledInOrder() throws Exception
+    {
+        byte[] content = createContent(100000);
+        InputStream in = new SftpPipelinedInputStream(new InMemoryClient(content), "/data/file.txt",
+            content.length, 4, 4096, 16384);
+
+        assertEquals(content, readFully(in));
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    public void testSingleByteReads() throws Exception
+    {
+        byte[] content = createContent(1000);
+        InputStream in = new SftpPipelinedInputStream(new InMemoryClient(content), "/data/file.txt",
+            content.length, 3, 100, 100);
+
+        for (int i = 0; i < content.length; i++)
+        {
+            assertEquals(content[i] & 0xff, in.read());
+        }
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    public void testReadAheadLimitedByMaxBufferSize() throws Exception
+    {
+        byte[] content = createContent(1000);
+        InMemoryClient client = new InMemoryClient(content);
+        InputStream in = new SftpPipelinedInputStream(client, "/data/file.txt", content.length, 3, 100, 100);
+
+        // Only one chunk fits in the buffer, so one channel is enough
+        assertEquals(1, client.channels.get());
+        assertEquals(content[0] & 0xff, in.read());
+
+        // Give a read-ahead beyond the limit the chance to happen
+        Thread.sleep(200);
+        assertTrue(client.gets.get() <= 2);
+
+        assertEquals(content.length - 1, readFully(in).length);
+        assertEquals(content.length / 100, client.gets.get());
+        in.close();
+    }
+
+    public void testFileShorterThanExpected() throws Exception
+    {
+        byte[] content = createContent(5000);
+        InputStream in = new SftpPipelinedInputStream(new InMemoryClient(content), "/data/file.txt", 10000,
+            2, 1024, 4096);
+
+        assertEquals(content, readFully(in));
+        in.close();
+    }
+
+    public void testReadAfterCloseFails() throws Exception
+    {
+        byte[] content = createContent(5000);
+        InputStream in = new SftpPipelinedInputStream(new InMemoryClient(content), "/data/file.txt",
+            content.length, 2, 1024, 4096);
+        in.close();
+
+        try
+        {
+            in.read();
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    public void testFewerChannelsThanWindow() throws Exception
+    {
+        byte[] content = createContent(100000);
+        InMemoryClient client = new InMemoryClient(content);
+        client.maxChannels = 2;
+        InputStream in = new SftpPipelinedInputStream(client, "/data/file.txt", content.length, 4, 4096,
+            16384);
+
+        // The server refused the other sessions, the file is read over the open ones
+        assertEquals(3, client.channels.get());
+        assertEquals(content, readFully(in));
+        in.close();
+    }
+
+    public void testNoChannelFails() throws Exception
+    {
+        byte[] content = createContent(100000);
+        InMemoryClient client = new InMemoryClient(content);
+        client.maxChannels = 0;
+
+        try
+        {
+            new SftpPipelinedInputStream(client, "/data/file.txt", content.length, 4, 4096, 16384);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            // expected, the client reads the file without pipelining
+        }
+    }
+
+    private static byte[] createContent(int size)
+    {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertEquals(byte[] expected, byte[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals("Byte " + i, expected[i], actual[i]);
+        }
+    }
+
+    private static class InMemoryClient extends SftpClient
+    {
+        private final byte[] content;
+        final AtomicInteger channels = new AtomicInteger();
+        final AtomicInteger gets = new AtomicInteger();
+        int maxChannels = Integer.MAX_VALUE;
+
+        InMemoryClient(byte[] content)
+        {
+            super("localhost");
+            this.content = content;
+        }
+
+        @Override
+        ChannelSftp openSftpChannel() throws IOException
+        {
+            if (channels.incrementAndGet() > maxChannels)
+            {
+                throw new IOException("Could not open an sftp channel to localhost: channel is not opened.");
+            }
+            return new ChannelSftp()
+            {
+                @Override
+                public InputStream get(String src, SftpProgressMonitor monitor, long skip)
+                {
+                    gets.incrementAndGet();
+                    int offset = (int) Math.min(skip, content.length);
+                    return new ByteArrayInputStream(content, offset, content.length - offset);
+                }
+
+                @Override
+                public void disconnect()
+                {
+                    // nothing to disconnect
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnit test for SftpPipelinedUpload
+ */
+public class SftpPipelinedUploadTestCase extends AbstractMuleTestCase
+{
+    public void testTransfer() throws Exception
+    {
+        byte[] content = new byte[100003];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long total = new SftpPipelinedUpload(4, 1000).transfer(new ByteArrayInputStream(content), out);
+
+        assertEquals(content.length, total);
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+    }
+
+    public void testEmptySource() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long total = new SftpPipelinedUpload(4, 1000).transfer(new ByteArrayInputStream(new byte[0]), out);
+
+        assertEquals(0, total);
+        assertEquals(0, out.size());
+    }
+
+    public void testReadErrorAbortsTransfer() throws Exception
+    {
+        InputStream failing = new InputStream()
+        {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException
+            {
+                if (count++ == 5000)
+                {
+                    throw new IOException("source failed");
+                }
+                return 'x';
+            }
+        };
+
+        try
+        {
+            new SftpPipelinedUpload(2, 1000).transfer(failing, new ByteArrayOutputStream());
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertEquals("source failed", e.getCause().getMessage());
+        }
+    }
+
+    public void testWriteErrorAbortsTransfer() throws Exception
+    {
+        OutputStream failing = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                throw new IOException("target failed");
+            }
+        };
+
+        try
+        {
+            new SftpPipelinedUpload(2, 1000).transfer(new ByteArrayInputStream(new byte[10000]), failing);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertEquals("target failed", e.getMessage());
+        }
+    }
+
+    public void testSourceNotReadAfterWriteError() throws Exception
+    {
+        final AtomicBoolean sourceClosed = new AtomicBoolean();
+        final AtomicInteger readsAfterClose = new AtomicInteger();
+        InputStream slow = new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                return 'x';
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (sourceClosed.get())
+                {
+                    readsAfterClose.incrementAndGet();
+                }
+                // Like a blocking socket read, an interrupt doesn't end the read
+                boolean interrupted = false;
+                long end = System.currentTimeMillis() + 10;
+                while (System.currentTimeMillis() < end)
+                {
+                    try
+                    {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                int n = Math.min(len, 100);
+                Arrays.fill(b, off, off + n, (byte) 'x');
+                return n;
+            }
+        };
+        OutputStream failing = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                // Fails while the reader is in the middle of the next read
+                try
+                {
+                    Thread.sleep(25);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("target failed");
+            }
+        };
+
+        try
+        {
+            new SftpPipelinedUpload(2, 1000).transfer(slow, failing);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            sourceClosed.set(true);
+        }
+
+        Thread.sleep(200);
+        assertEquals(0, readsAfterClose.get());
+    }
+
+    public void testInterruptedBeforeTransfer() throws Exception
+    {
+        // The reader may or may not have started when the transfer gives up
+        for (int i = 0; i < 20; i++)
+        {
+            final AtomicBoolean interrupted = new AtomicBoolean();
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    Thread.currentThread().interrupt();
+                    try
+                    {
+                        new SftpPipelinedUpload(2, 1000).transfer(new ByteArrayInputStream(new byte[100000]),
+                            new ByteArrayOutputStream());
+                    }
+                    catch (InterruptedIOException e)
+                    {
+                        interrupted.set(Thread.currentThread().isInterrupted());
+                    }
+                    catch (IOException e)
+                    {
+                        // not expected, checked below
+                    }
+                }
+            };
+            thread.start();
+            thread.join(10000);
+            assertFalse("The transfer did not return", thread.isAlive());
+            assertTrue(interrupted.get());
+        }
+    }
+
+    public void testBlockedSourceClosed() throws Exception
+    {
+        final CountDownLatch closed = new CountDownLatch(1);
+        final CountDownLatch reading = new CountDownLatch(1);
+        InputStream blocked = new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                // Like a read from a dead connection, only closing the stream ends it
+                reading.countDown();
+                boolean interrupted = false;
+                while (true)
+                {
+                    try
+                    {
+                        closed.await();
+                        break;
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Stream closed");
+            }
+
+            @Override
+            public void close()
+            {
+                closed.countDown();
+            }
+        };
+        OutputStream failing = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                throw new IOException("target failed");
+            }
+        };
+
+        // The first write fails once the reader is stuck in the second buffer
+        final byte[] first = new byte[10];
+        SequenceInputStream source = new SequenceInputStream(new ByteArrayInputStream(first), blocked);
+        long start = System.currentTimeMillis();
+        try
+        {
+            new SftpPipelinedUpload(2, 10).transfer(source, failing);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertEquals("target failed", e.getMessage());
+        }
+        assertTrue(reading.await(0, TimeUnit.SECONDS));
+        assertEquals(0, closed.getCount());
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+}
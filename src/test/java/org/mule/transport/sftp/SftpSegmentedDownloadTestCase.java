@@ -0,0 +1,292 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.apache.commons.pool.ObjectPool;
+import org.mule.api.endpoint.ImmutableEndpoint;
+import org.mule.tck.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnit test for SftpSegmentedDownload, uses in-memory clients instead of a real
+ * sftp server.
+ */
+public class SftpSegmentedDownloadTestCase extends AbstractMuleTestCase
+{
+    private static final int MB = 1024 * 1024;
+
+    private final Set<Long> offsets = new TreeSet<Long>();
+    private byte[] content;
+    private long failingOffset = -1;
+    private CountDownLatch brokenPooledClients;
+    private final List<InMemoryClient> pooledClients = new ArrayList<InMemoryClient>();
+    private final AtomicInteger borrowed = new AtomicInteger();
+    private final Set<InMemoryClient> destroyed = Collections.synchronizedSet(new HashSet<InMemoryClient>());
+    private StubSftpConnector connector;
+    private ImmutableEndpoint endpoint;
+    private File spoolDir;
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        content = new byte[3 * MB + 123];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte) (i * 31);
+        }
+
+        connector = new StubSftpConnector(muleContext, "sftpSegmented", new StubSftpConnector.ClientFactory()
+        {
+            public SftpClient createClient()
+            {
+                InMemoryClient client = new InMemoryClient(brokenPooledClients);
+                synchronized (pooledClients)
+                {
+                    pooledClients.add(client);
+                }
+                return client;
+            }
+        });
+        endpoint = connector.createInboundEndpoint();
+
+        spoolDir = FileUtils.newFile(System.getProperty("java.io.tmpdir"), "sftp-spool-" + System.nanoTime());
+        assertTrue(spoolDir.mkdirs());
+    }
+
+    @Override
+    protected void doTearDown() throws Exception
+    {
+        FileUtils.deleteTree(spoolDir);
+    }
+
+    public void testSegmentBoundaries() throws Exception
+    {
+        InputStream in = new SftpSegmentedDownload(endpoint, 2, spoolDir).retrieveFile(new InMemoryClient(),
+            "/data/large.bin", content.length);
+
+        // At least 1 MB per segment, the last one has the rest
+        assertEquals(new TreeSet<Long>(Arrays.asList(0L, (long) MB, 2L * MB, 3L * MB)), offsets);
+        assertTrue(Arrays.equals(content, readFully(in)));
+        in.close();
+    }
+
+    public void testSpoolFileAndClientsReleased() throws Exception
+    {
+        InputStream in = new SftpSegmentedDownload(endpoint, 4, spoolDir).retrieveFile(new InMemoryClient(),
+            "/data/large.bin", content.length);
+        assertEquals(1, spoolDir.list().length);
+        assertNoBorrowedClients();
+
+        in.close();
+        assertEquals(0, spoolDir.list().length);
+    }
+
+    public void testFailedSegment() throws Exception
+    {
+        failingOffset = 2 * MB;
+        try
+        {
+            new SftpSegmentedDownload(endpoint, 4, spoolDir).retrieveFile(new InMemoryClient(), "/data/large.bin",
+                content.length);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().endsWith("Connection lost"));
+        }
+        assertEquals(0, spoolDir.list().length);
+        assertNoBorrowedClients();
+    }
+
+    public void testExhaustedPoolNotWaitedFor() throws Exception
+    {
+        connector.setMaxConnectionPoolSize(1);
+        ObjectPool pool = connector.getClientPool(endpoint);
+        Object busy = pool.borrowObject();
+
+        InputStream in = new SftpSegmentedDownload(endpoint, 4, spoolDir).retrieveFile(new InMemoryClient(),
+            "/data/large.bin", content.length);
+        assertTrue(Arrays.equals(content, readFully(in)));
+        in.close();
+
+        // A helper that waited for the busy connection would borrow it as soon as
+        // it's returned
+        pool.returnObject(busy);
+        Thread.sleep(200);
+        assertEquals(0, borrowed.get());
+        assertEquals(1, pool.getNumIdle());
+    }
+
+    public void testFailedClientDestroyed() throws Exception
+    {
+        final CountDownLatch pooledClientFailed = new CountDownLatch(1);
+        brokenPooledClients = pooledClientFailed;
+        InMemoryClient client = new InMemoryClient()
+        {
+            @Override
+            public ChannelSftp getChannelSftp()
+            {
+                // Leaves the segments to the pooled clients until one of them failed
+                try
+                {
+                    pooledClientFailed.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getChannelSftp();
+            }
+        };
+
+        try
+        {
+            new SftpSegmentedDownload(endpoint, 4, spoolDir).retrieveFile(client, "/data/large.bin",
+                content.length);
+            fail("Expected an IOException");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().endsWith("Connection lost"));
+        }
+        assertNoBorrowedClients();
+
+        // A connection that failed isn't handed out again
+        assertEquals(0, pooledClientFailed.getCount());
+        synchronized (pooledClients)
+        {
+            for (InMemoryClient pooled : pooledClients)
+            {
+                assertTrue(!pooled.failed || destroyed.contains(pooled));
+            }
+        }
+    }
+
+    /**
+     * Additional clients are borrowed in the background and released when they are
+     * not needed anymore
+     */
+    private void assertNoBorrowedClients() throws Exception
+    {
+        ObjectPool pool = connector.getClientPool(endpoint);
+        for (int i = 0; i < 100 && pool.getNumActive() > 0; i++)
+        {
+            Thread.sleep(20);
+        }
+        assertEquals(0, pool.getNumActive());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private class InMemoryClient extends SftpClient
+    {
+        private final CountDownLatch broken;
+        volatile boolean failed;
+
+        InMemoryClient()
+        {
+            this(null);
+        }
+
+        /**
+         * @param broken counted down when a read of the client fails, null if the
+         *            reads don't fail
+         */
+        InMemoryClient(CountDownLatch broken)
+        {
+            super("localhost");
+            this.broken = broken;
+        }
+
+        @Override
+        public void changeWorkingDirectory(String wd)
+        {
+            // Called for each client the connector hands out
+            borrowed.incrementAndGet();
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return true;
+        }
+
+        @Override
+        public void disconnect()
+        {
+            // Called when the pool destroys the client
+            destroyed.add(this);
+        }
+
+        @Override
+        public ChannelSftp getChannelSftp()
+        {
+            return new ChannelSftp()
+            {
+                @Override
+                public InputStream get(String src, SftpProgressMonitor monitor, long skip)
+                {
+                    synchronized (offsets)
+                    {
+                        offsets.add(skip);
+                    }
+                    final int offset = (int) skip;
+                    return new ByteArrayInputStream(content, offset, content.length - offset)
+                    {
+                        @Override
+                        public synchronized int read(byte[] b, int off, int len)
+                        {
+                            if (offset == failingOffset || broken != null)
+                            {
+                                failed = true;
+                                if (broken != null)
+                                {
+                                    broken.countDown();
+                                }
+                                throw new IllegalStateException("Connection lost");
+                            }
+                            return super.read(b, off, len);
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+import org.mule.util.FileUtils;
+import org.mule.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * JUnit test for writing the archive copy while the payload is consumed
+ */
+public class SftpTeeArchiveInputStreamTestCase extends AbstractMuleTestCase
+{
+    private final byte[] content = new byte[200000];
+    private File directory;
+    private File partFile;
+    private File archiveFile;
+    private boolean innerClosed;
+    private boolean innerError;
+    private int innerRead;
+
+    @Override
+    protected void doSetUp() throws Exception
+    {
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = (byte) (i * 7);
+        }
+        directory = FileUtils.newFile(System.getProperty("java.io.tmpdir"), "sftp-tee-" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+        partFile = new File(directory, "file.txt.part");
+        archiveFile = new File(directory, "file.txt");
+    }
+
+    @Override
+    protected void doTearDown() throws Exception
+    {
+        FileUtils.deleteTree(directory);
+    }
+
+    public void testArchiveCommittedOnClose() throws Exception
+    {
+        SftpTeeArchiveInputStream in = createStream();
+        assertEquals(content.length, in.getFileSize());
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(in)));
+        assertFalse(archiveFile.exists());
+
+        in.close();
+
+        assertTrue(innerClosed);
+        assertFalse(innerError);
+        assertFalse(partFile.exists());
+        assertArchived();
+    }
+
+    public void testUnreadBytesArchivedOnClose() throws Exception
+    {
+        SftpTeeArchiveInputStream in = createStream();
+        in.read();
+        in.read(new byte[100]);
+        in.close();
+
+        assertTrue(innerClosed);
+        assertArchived();
+    }
+
+    public void testArchiveDiscardedOnError() throws Exception
+    {
+        SftpTeeArchiveInputStream in = createStream();
+        in.read(new byte[100]);
+        in.setErrorOccurred();
+        in.close();
+
+        assertTrue(innerClosed);
+        assertTrue(innerError);
+        assertFalse(partFile.exists());
+        assertFalse(archiveFile.exists());
+    }
+
+    public void testAbandonedStreamNotRead() throws Exception
+    {
+        SftpTeeArchiveInputStream in = createStream();
+        in.read(new byte[100]);
+        in.abandon();
+
+        // The remote file is closed without an error, so autoDelete applies
+        assertTrue(innerClosed);
+        assertFalse(innerError);
+        assertEquals(100, innerRead);
+        assertFalse(partFile.exists());
+        assertFalse(archiveFile.exists());
+    }
+
+    private void assertArchived() throws IOException
+    {
+        FileInputStream archived = new FileInputStream(archiveFile);
+        try
+        {
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(archived)));
+        }
+        finally
+        {
+            archived.close();
+        }
+    }
+
+    private SftpTeeArchiveInputStream createStream() throws Exception
+    {
+        SftpInputStream in = new SftpInputStream(null, new ByteArrayInputStream(content), "file.txt", true, null)
+        {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                int n = super.read(b, off, len);
+                innerRead += Math.max(0, n);
+                return n;
+            }
+
+            @Override
+            public void close()
+            {
+                // no client to release
+                innerClosed = true;
+            }
+
+            @Override
+            public void setErrorOccurred()
+            {
+                super.setErrorOccurred();
+                innerError = true;
+            }
+        };
+        in.setFileSize(content.length);
+        return new SftpTeeArchiveInputStream(in, partFile, archiveFile);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp;
+
+import org.mule.tck.AbstractMuleTestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JUnit test for the addSeqNo duplicate handling of SftpClient with SftpUniqueNames
+ */
+public class SftpUniqueNamesTestCase extends AbstractMuleTestCase
+{
+    private static final String ADD_SEQ_NO = SftpConnector.PROPERTY_DUPLICATE_HANDLING_ASS_SEQ_NO;
+
+    private final ConcurrentHashMap<String, Boolean> existing = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger checks = new AtomicInteger();
+
+    public void testFreeNameIsCheckedOnce() throws Exception
+    {
+        for (int i = 0; i < 50000; i++)
+        {
+            existing.put("/data/other" + i + ".txt", Boolean.TRUE);
+        }
+        SftpUniqueNames uniqueNames = new SftpUniqueNames();
+
+        assertEquals("file.txt", new StubClient().duplicateHandling("/data", "file.txt", ADD_SEQ_NO, uniqueNames));
+        assertEquals(1, checks.get());
+        assertTrue(uniqueNames.isReserved("localhost", "/data/file.txt"));
+    }
+
+    public void testDuplicatesContinueFromLastSeqNo() throws Exception
+    {
+        existing.put("/data/file.txt", Boolean.TRUE);
+        existing.put("/data/file_1.txt", Boolean.TRUE);
+        SftpUniqueNames uniqueNames = new SftpUniqueNames();
+        StubClient client = new StubClient();
+
+        assertEquals("file_2.txt", client.duplicateHandling("/data", "file.txt", ADD_SEQ_NO, uniqueNames));
+        existing.put("/data/file_2.txt", Boolean.TRUE);
+        uniqueNames.release("localhost", "/data/file_2.txt");
+
+        checks.set(0);
+        assertEquals("file_3.txt", client.duplicateHandling("/data", "file.txt", ADD_SEQ_NO, uniqueNames));
+        assertEquals(2, checks.get());
+    }
+
+    public void testConcurrentDispatchersGetDistinctNames() throws Exception
+    {
+        existing.put("/data/file", Boolean.TRUE);
+        final SftpUniqueNames uniqueNames = new SftpUniqueNames();
+        final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(16);
+        for (int i = 0; i < 16; i++)
+        {
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        names.add(new StubClient().duplicateHandling("/data", "file", ADD_SEQ_NO, uniqueNames));
+                    }
+                    catch (Exception e)
+                    {
+                        // the name is missing from the result
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(16, names.size());
+        assertFalse(names.contains("file"));
+    }
+
+    /**
+     * A client whose server has the files in <code>existing</code>
+     */
+    private class StubClient extends SftpClient
+    {
+        StubClient()
+        {
+            super("localhost");
+        }
+
+        @Override
+        public boolean exists(String path) throws IOException
+        {
+            checks.incrementAndGet();
+            return existing.containsKey(path);
+        }
+    }
+}
@@ -12,8 +12,8 @@ import org.mule.transport.sftp.SftpClient;
  * Test the three different types of handling when duplicate files (i.e. file names)
  * are being transferred by SftpTransport. Available duplicate handling types are: -
  * SftpConnector.PROPERTY_DUPLICATE_HANDLING_THROW_EXCEPTION = "throwException" -
- * SftpConnectorPROPERTY_DUPLICATE_HANDLING_OVERWRITE = "overwrite" (currently not
- * implemented) - SftpConnector.PROPERTY_DUPLICATE_HANDLING_ASS_SEQ_NO = "addSeqNo"
+ * SftpConnectorPROPERTY_DUPLICATE_HANDLING_OVERWRITE = "overwrite" -
+ * SftpConnector.PROPERTY_DUPLICATE_HANDLING_ASS_SEQ_NO = "addSeqNo"
  */
 public class SftpCheckDuplicateFileHandlingTestCase extends AbstractSftpDataIntegrityTestCase
 {
@@ -0,0 +1,103 @@
+/*
+ * $Id$
+ * --------------------------------------------------------------------------------------
+ * Copyright (c) MuleSource, Inc.  All rights reserved.  http://www.mulesource.com
+ *
+ * The software in this package is published under the terms of the MuleSource MPL
+ * license, a copy of which has been included with this distribution in the
+ * LICENSE.txt file.
+ */
+
+package org.mule.transport.sftp.transformers;
+
+import org.mule.tck.AbstractMuleTestCase;
+import org.mule.transport.sftp.SftpInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * JUnit test for InputStreamToByteArray
+ */
+public class InputStreamToByteArrayTestCase extends AbstractMuleTestCase
+{
+    private final InputStreamToByteArray transformer = new InputStreamToByteArray();
+
+    public void testUnknownSize() throws Exception
+    {
+        byte[] content = createContent(1000003);
+        assertTrue(Arrays.equals(content, transform(new ByteArrayInputStream(content))));
+    }
+
+    public void testEmptyStream() throws Exception
+    {
+        assertEquals(0, transform(new ByteArrayInputStream(new byte[0])).length);
+    }
+
+    public void testKnownSize() throws Exception
+    {
+        byte[] content = createContent(100000);
+        assertTrue(Arrays.equals(content, transform(sftpStream(content, content.length))));
+    }
+
+    public void testFileGrewAfterSizeWasTaken() throws Exception
+    {
+        byte[] content = createContent(100000);
+        assertTrue(Arrays.equals(content, transform(sftpStream(content, 60000))));
+    }
+
+    public void testFileShrankAfterSizeWasTaken() throws Exception
+    {
+        byte[] content = createContent(100000);
+        assertTrue(Arrays.equals(content, transform(sftpStream(content, 150000))));
+    }
+
+    public void testLocalFile() throws Exception
+    {
+        byte[] content = createContent(70000);
+        File file = File.createTempFile("sftp-transformer", ".tmp");
+        try
+        {
+            FileUtils.writeByteArrayToFile(file, content);
+            assertTrue(Arrays.equals(content, transform(new FileInputStream(file))));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    private byte[] transform(InputStream in) throws Exception
+    {
+        return (byte[]) transformer.doTransform(in, "UTF-8");
+    }
+
+    private static InputStream sftpStream(byte[] content, long size) throws Exception
+    {
+        SftpInputStream in = new SftpInputStream(null, new ByteArrayInputStream(content), "file.txt", false, null)
+        {
+            @Override
+            public void close()
+            {
+                // no client to release
+            }
+        };
+        in.setFileSize(size);
+        return in;
+    }
+
+    private static byte[] createContent(int size)
+    {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+        {
+            content[i] = (byte) (i * 7);
+        }
+        return content;
+    }
+}